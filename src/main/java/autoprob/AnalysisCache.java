@@ -0,0 +1,213 @@
+package autoprob;
+
+import java.awt.Point;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import autoprob.go.Intersection;
+import autoprob.go.Node;
+import autoprob.katastruct.AllowMove;
+import autoprob.katastruct.KataAnalysisResult;
+import autoprob.katastruct.KataQuery;
+import autoprob.katastruct.MoveInfo;
+
+// in-memory LRU of analysis results, keyed by position and the query settings that change the answer.
+// path creation and joseki exploration keep asking katago about the same positions.
+// positions are stored turned to a canonical orientation, so a rotation or reflection of one already
+// analyzed is a hit too, with the answer turned back to match.
+public class AnalysisCache {
+	private static final DecimalFormat df = new DecimalFormat("0.00");
+
+	private final long maxBytes;
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+	private long symmetricHits = 0; // answered from the same position in another orientation
+	private long symHashMismatches = 0; // same key, but katago disagreed it was the same position
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true); // access order
+
+	private static class Entry {
+		final KataAnalysisResult kres;
+		final int visits; // how deep it was really searched, less than asked when stopped early
+		final long size;
+		final int sym; // orientation it was asked in, relative to the canonical one
+
+		Entry(KataAnalysisResult kres, int visits, long size, int sym) {
+			this.kres = kres;
+			this.visits = visits;
+			this.size = size;
+			this.sym = sym;
+		}
+	}
+
+	public AnalysisCache(Properties props) {
+		maxBytes = (long) (Double.parseDouble(props.getProperty("kata.cache.max_mb", "256")) * 1024 * 1024);
+	}
+
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	// key for the position node is showing, analyzed with the settings in query.
+	// it's the smallest of the keys of the 8 orientations, then '#' and the symmetry that turns this one into it.
+	public String key(Node node, KataQuery query) {
+		String best = null;
+		int bestSym = 0;
+		for (int sym = 0; sym < BoardSymmetry.COUNT; sym++) {
+			String k = orientedKey(node, query, sym);
+			if (best == null || k.compareTo(best) < 0) {
+				best = k;
+				bestSym = sym;
+			}
+		}
+		return best + "#" + bestSym;
+	}
+
+	private String orientedKey(Node node, KataQuery query, int sym) {
+		int inv = BoardSymmetry.inverse(sym);
+		StringBuilder sb = new StringBuilder(420);
+		for (int y = 0; y < 19; y++)
+			for (int x = 0; x < 19; x++) {
+				Point p = BoardSymmetry.apply(inv, x, y);
+				sb.append((char) ('0' + node.board.board[p.x][p.y].stone));
+			}
+		sb.append('|').append(playerToMove(query));
+		sb.append('|').append(koPoint(node, sym));
+		sb.append('|');
+		if (query.allowMoves != null) {
+			for (AllowMove am: query.allowMoves) {
+				List<String> moves = new ArrayList<>(am.moves.size());
+				for (String mv: am.moves)
+					moves.add(BoardSymmetry.move(sym, mv));
+				Collections.sort(moves);
+				sb.append(am.player).append(am.untilDepth).append(moves);
+			}
+		}
+		sb.append('|').append(query.overrideSettings == null ? "" : query.overrideSettings.humanSLProfile);
+		sb.append('|').append(query.rules);
+		sb.append('|').append(query.komi);
+		return sb.toString();
+	}
+
+	// player to move at the analyzed turn: whoever didn't make the last move, or the initial player
+	private String playerToMove(KataQuery query) {
+		if (query.moves == null || query.moves.isEmpty())
+			return query.initialPlayer;
+		int turn = query.analyzeTurns == null || query.analyzeTurns.isEmpty() ? query.moves.size() : query.analyzeTurns.get(0);
+		if (turn == 0)
+			return query.initialPlayer;
+		String last = query.moves.get(turn - 1).get(0);
+		return last.equals("B") ? "W" : "B";
+	}
+
+	private String koPoint(Node node, int sym) {
+		Point p = node.findMove();
+		if (p == null || p.x == 19)
+			return ""; // pass or setup, no ko to take
+		Point ko = node.getKo();
+		if (ko == null)
+			return "";
+		ko = BoardSymmetry.apply(sym, ko.x, ko.y);
+		return Intersection.toGTPloc(ko.x, ko.y);
+	}
+
+	private static String position(String key) {
+		return key.substring(0, key.lastIndexOf('#'));
+	}
+
+	private static int symmetry(String key) {
+		return Integer.parseInt(key.substring(key.lastIndexOf('#') + 1));
+	}
+
+	// a stored result is good enough if it had at least as many visits and has every field asked for
+	public synchronized KataAnalysisResult lookup(String key, KataQuery query) {
+		Entry e = entries.get(position(key));
+		if (e != null && e.visits >= query.maxVisits && hasFields(e.kres, query)) {
+			hits++;
+			int sym = symmetry(key);
+			if (sym != e.sym)
+				symmetricHits++;
+			return BoardSymmetry.result(BoardSymmetry.inverse(sym), e.kres);
+		}
+		misses++;
+		return null;
+	}
+
+	private boolean hasFields(KataAnalysisResult kres, KataQuery query) {
+		if (Boolean.TRUE.equals(query.includeOwnership) && kres.ownership == null) return false;
+		if (Boolean.TRUE.equals(query.includeOwnershipStdev) && kres.ownershipStdev == null) return false;
+		if (Boolean.TRUE.equals(query.includePolicy) && kres.policy == null) return false;
+		return true;
+	}
+
+	public synchronized void store(String key, KataQuery query, KataAnalysisResult kres) {
+		String pos = position(key);
+		Entry old = entries.get(pos);
+		if (old != null && !sameSymHash(old.kres, kres)) {
+			symHashMismatches++; // something the key misses, don't let them share
+			entries.remove(pos);
+			bytes -= old.size;
+			return;
+		}
+		int visits = searchedVisits(query, kres);
+		if (old != null && old.visits > visits)
+			return; // keep the deeper one
+		int sym = symmetry(key);
+		Entry e = new Entry(BoardSymmetry.result(sym, kres), visits, estimateSize(pos, kres), sym);
+		old = entries.put(pos, e);
+		if (old != null)
+			bytes -= old.size;
+		bytes += e.size;
+
+		// drop least recently used until we fit
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			bytes -= eldest.size;
+			evictions++;
+		}
+	}
+
+	// a query terminated early (stopWhen) has fewer visits than it asked for, and mustn't pass for a full search
+	private static int searchedVisits(KataQuery query, KataAnalysisResult kres) {
+		if (kres.rootInfo == null || kres.rootInfo.visits == null)
+			return query.stopWhen == null ? query.maxVisits : 0;
+		return Math.min(query.maxVisits, kres.rootInfo.visits);
+	}
+
+	// katago's own orientation independent hash, when both have one
+	private boolean sameSymHash(KataAnalysisResult a, KataAnalysisResult b) {
+		if (a.rootInfo == null || b.rootInfo == null || a.rootInfo.symHash == null || b.rootInfo.symHash == null)
+			return true;
+		return a.rootInfo.symHash.equals(b.rootInfo.symHash);
+	}
+
+	// rough heap size of a result, dominated by the per-intersection arrays
+	private long estimateSize(String key, KataAnalysisResult kres) {
+		long size = 200 + key.length() * 2L;
+		size += arraySize(kres.ownership) + arraySize(kres.ownershipStdev) + arraySize(kres.policy) + arraySize(kres.humanPolicy);
+		if (kres.moveInfos != null) {
+			for (MoveInfo mi: kres.moveInfos) {
+				size += 250 + (mi.pv == null ? 0 : mi.pv.size() * 48L);
+			}
+		}
+		return size;
+	}
+
+	private long arraySize(double[] a) {
+		return a == null ? 0 : 16 + a.length * 8L;
+	}
+
+	public synchronized String summary() {
+		long total = hits + misses;
+		return "analysis cache: " + hits + " hits, " + misses + " misses (" + df.format(total == 0 ? 0 : 100.0 * hits / total) + "%), "
+				+ symmetricHits + " from turned positions, " + entries.size() + " entries, " + df.format(bytes / (1024.0 * 1024.0)) + " MB, "
+				+ evictions + " evicted" + (symHashMismatches > 0 ? ", " + symHashMismatches + " symHash mismatches" : "");
+	}
+}
@@ -0,0 +1,31 @@
+package autoprob;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import autoprob.katastruct.KataAnalysisResult;
+import autoprob.katastruct.KataQuery;
+
+// what the detectors, path creators and tools need from an analysis engine. KataBrain is the one
+// implementation: local katago processes, or katago on other machines behind KataServer (katago=tcp://host:port).
+public interface AnalysisEngine {
+	// one future per turn in query.analyzeTurns, or the final turn when there are none
+	Map<Integer, CompletableFuture<KataAnalysisResult>> doQuery(KataQuery query);
+
+	// drops everything sent on behalf of owner (KataQuery.owner), queued or running
+	void cancel(Object owner);
+
+	// completes once the engine is loaded and answering
+	CompletableFuture<Void> ready();
+
+	AnalysisCache getCache();
+
+	// the model answering queries, used to label stored analysis
+	String getModelPath();
+
+	String getQueueWaitSummary();
+
+	String getEarlyStopSummary();
+
+	void stop();
+}
@@ -0,0 +1,285 @@
+package autoprob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import com.google.gson.Gson;
+
+import autoprob.katastruct.KataAnalysisResult;
+import autoprob.katastruct.KataResultDecoder;
+
+/**
+ * append-only on-disk store of katago results, so re-running a directory scan with different
+ * search thresholds doesn't need the engine again. keyed by (sgf hash, turn, visits, model).
+ *
+ * analysis.dat holds the records: an int length, then "key\njson" in utf-8.
+ * analysis-CAPACITY.idx is a memory-mapped open addressing table of (key hash, record offset),
+ * rebuilt twice as big when it gets too full. it also remembers how much of the data file it covers,
+ * so anything appended after a crash is indexed again on the next open.
+ *
+ * only one process can have a store open, the index is mapped and cached in memory and wouldn't see
+ * another process's writes. it holds a lock on a byte far past the end of analysis.dat while open.
+ */
+public class AnalysisStore {
+	private static final int MAGIC = 0x41504958; // APIX
+	private static final int HEADER = 32;
+	private static final int SLOT = 16;
+	private static final double MAX_LOAD = 0.7;
+
+	private final File dir;
+	private final FileChannel data;
+	private FileLock owner; // held while open, so a second process can't share the store
+	private FileChannel indexChannel;
+	private MappedByteBuffer index;
+	private File indexFile;
+	private int capacity;
+	private int count;
+	private long indexedBytes;
+	private final Gson gson = new Gson();
+	private final KataResultDecoder decoder = new KataResultDecoder();
+	private long hits = 0, misses = 0, appended = 0;
+
+	public AnalysisStore(String path) throws IOException {
+		dir = new File(path);
+		dir.mkdirs();
+		data = FileChannel.open(new File(dir, "analysis.dat").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			owner = data.tryLock(Long.MAX_VALUE - 1, 1, false);
+		} catch (OverlappingFileLockException e) {
+			owner = null; // open in this vm already
+		}
+		if (owner == null) {
+			data.close();
+			throw new IOException("analysis store " + dir + " is in use by another process");
+		}
+		openIndex();
+		indexTail();
+		System.out.println("analysis store " + dir + ": " + count + " results, " + (data.size() / (1024 * 1024)) + " MB");
+	}
+
+	// key for one turn of a game
+	public static String key(String sgfHash, int turn, int visits, String model) {
+		return sgfHash + "|" + turn + "|" + visits + "|" + model;
+	}
+
+	public static String hashSgf(String sgf) {
+		return HexFormat.of().formatHex(sha256(sgf)).substring(0, 32);
+	}
+
+	public synchronized KataAnalysisResult get(String key) throws IOException {
+		long h = hash(key);
+		int mask = capacity - 1;
+		for (int i = (int) (h & mask); ; i = (i + 1) & mask) {
+			long slotHash = index.getLong(HEADER + i * SLOT);
+			if (slotHash == 0)
+				break;
+			if (slotHash == h) {
+				String rec = readRecord(index.getLong(HEADER + i * SLOT + 8));
+				int nl = rec.indexOf('\n');
+				if (rec.substring(0, nl).equals(key)) {
+					hits++;
+					return decoder.decode(rec.substring(nl + 1));
+				}
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	public synchronized void put(String key, KataAnalysisResult kres) throws IOException {
+		if (find(hash(key), key) >= 0)
+			return; // already have it
+		byte[] rec = (key + "\n" + gson.toJson(kres)).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer bb = ByteBuffer.allocate(4 + rec.length);
+		bb.putInt(rec.length).put(rec).flip();
+		long offset = data.size();
+		while (bb.hasRemaining())
+			data.write(bb, offset + bb.position());
+		insert(hash(key), offset);
+		setIndexedBytes(offset + 4 + rec.length);
+		appended++;
+	}
+
+	public synchronized String summary() {
+		return "analysis store: " + hits + " hits, " + misses + " misses, " + appended + " appended, " + count + " total";
+	}
+
+	public synchronized void close() throws IOException {
+		index.force();
+		indexChannel.close();
+		data.force(false);
+		owner.release();
+		data.close();
+	}
+
+	// slot index holding key, or -1
+	private int find(long h, String key) throws IOException {
+		int mask = capacity - 1;
+		for (int i = (int) (h & mask); ; i = (i + 1) & mask) {
+			long slotHash = index.getLong(HEADER + i * SLOT);
+			if (slotHash == 0)
+				return -1;
+			if (slotHash == h) {
+				String rec = readRecord(index.getLong(HEADER + i * SLOT + 8));
+				if (rec.startsWith(key + "\n"))
+					return i;
+			}
+		}
+	}
+
+	private void insert(long h, long offset) throws IOException {
+		if (count + 1 > capacity * MAX_LOAD)
+			grow();
+		putSlot(index, capacity, h, offset);
+		count++;
+		index.putInt(8, count);
+	}
+
+	private static void putSlot(MappedByteBuffer idx, int cap, long h, long offset) {
+		int mask = cap - 1;
+		int i = (int) (h & mask);
+		while (idx.getLong(HEADER + i * SLOT) != 0)
+			i = (i + 1) & mask;
+		idx.putLong(HEADER + i * SLOT + 8, offset);
+		idx.putLong(HEADER + i * SLOT, h); // hash last, it marks the slot used
+	}
+
+	private void setIndexedBytes(long n) {
+		indexedBytes = n;
+		index.putLong(16, n);
+	}
+
+	private String readRecord(long offset) throws IOException {
+		ByteBuffer len = ByteBuffer.allocate(4);
+		data.read(len, offset);
+		len.flip();
+		ByteBuffer rec = ByteBuffer.allocate(len.getInt());
+		while (rec.hasRemaining()) {
+			if (data.read(rec, offset + 4 + rec.position()) < 0)
+				throw new IOException("truncated record at " + offset);
+		}
+		return new String(rec.array(), StandardCharsets.UTF_8);
+	}
+
+	// use the biggest index on disk, or make a fresh one
+	private void openIndex() throws IOException {
+		int best = 0;
+		File[] files = dir.listFiles((d, name) -> name.startsWith("analysis-") && name.endsWith(".idx"));
+		if (files != null) {
+			for (File f: files) {
+				int cap = Integer.parseInt(f.getName().substring(9, f.getName().length() - 4));
+				best = Math.max(best, cap);
+			}
+			// stale smaller ones left behind by a grow
+			for (File f: files) {
+				if (!f.getName().equals("analysis-" + best + ".idx"))
+					f.delete();
+			}
+		}
+		if (best == 0) {
+			mapIndex(1 << 16, true);
+			return;
+		}
+		mapIndex(best, false);
+		if (index.getInt(0) != MAGIC || index.getInt(4) != capacity) {
+			System.out.println("analysis store index is damaged, rebuilding");
+			indexChannel.close();
+			indexFile.delete();
+			mapIndex(capacity, true);
+		}
+		count = index.getInt(8);
+		indexedBytes = index.getLong(16);
+	}
+
+	private void mapIndex(int cap, boolean fresh) throws IOException {
+		capacity = cap;
+		indexFile = new File(dir, "analysis-" + cap + ".idx");
+		indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) cap * SLOT);
+		if (fresh) {
+			index.putInt(0, MAGIC);
+			index.putInt(4, cap);
+			index.putInt(8, 0);
+			index.putLong(16, 0);
+			count = 0;
+			indexedBytes = 0;
+		}
+	}
+
+	// index records appended after the index was last written, and drop a torn last record
+	private void indexTail() throws IOException {
+		long size = data.size();
+		long pos = indexedBytes;
+		int added = 0;
+		while (pos + 4 <= size) {
+			ByteBuffer len = ByteBuffer.allocate(4);
+			data.read(len, pos);
+			len.flip();
+			int n = len.getInt();
+			if (n <= 0 || pos + 4 + n > size)
+				break;
+			String rec = readRecord(pos);
+			String key = rec.substring(0, rec.indexOf('\n'));
+			if (find(hash(key), key) < 0) {
+				insert(hash(key), pos);
+				added++;
+			}
+			pos += 4 + n;
+		}
+		if (pos < size) {
+			System.out.println("analysis store: dropping " + (size - pos) + " bytes of partial record");
+			data.truncate(pos);
+		}
+		setIndexedBytes(pos);
+		if (added > 0)
+			System.out.println("analysis store: indexed " + added + " results missing from the index");
+	}
+
+	private void grow() throws IOException {
+		MappedByteBuffer old = index;
+		int oldCap = capacity;
+		FileChannel oldChannel = indexChannel;
+		File oldFile = indexFile;
+		mapIndex(oldCap * 2, true);
+		for (int i = 0; i < oldCap; i++) {
+			long h = old.getLong(HEADER + i * SLOT);
+			if (h != 0)
+				putSlot(index, capacity, h, old.getLong(HEADER + i * SLOT + 8));
+		}
+		count = old.getInt(8);
+		index.putInt(8, count);
+		setIndexedBytes(old.getLong(16));
+		index.force();
+		oldChannel.close();
+		oldFile.delete(); // may fail while still mapped, cleaned up on next open
+	}
+
+	private static long hash(String key) {
+		long h = ByteBuffer.wrap(sha256(key)).getLong();
+		return h == 0 ? 1 : h; // 0 means empty slot
+	}
+
+	private static byte[] sha256(String s) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// model name used in keys: the weights file, without its directory
+	public static String modelName(String modelPath) {
+		return Path.of(modelPath).getFileName().toString();
+	}
+}
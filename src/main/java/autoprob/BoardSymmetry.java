@@ -0,0 +1,94 @@
+package autoprob;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+import autoprob.go.Intersection;
+import autoprob.katastruct.KataAnalysisResult;
+import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.RootInfo;
+
+// the 8 rotations and reflections of the 19x19 board.
+// a symmetry is a number 0-7: bit 4 transposes x and y, then bit 1 mirrors x and bit 2 mirrors y. 0 leaves things alone.
+public class BoardSymmetry {
+	public static final int COUNT = 8;
+	private static final Gson gson = new Gson();
+
+	public static Point apply(int sym, int x, int y) {
+		if (x == 19 || y == 19)
+			return new Point(x, y); // pass
+		if ((sym & 4) != 0) {
+			int t = x;
+			x = y;
+			y = t;
+		}
+		if ((sym & 1) != 0)
+			x = 18 - x;
+		if ((sym & 2) != 0)
+			y = 18 - y;
+		return new Point(x, y);
+	}
+
+	// the symmetry that undoes sym. a transpose after a single mirror is the other mirror before it.
+	public static int inverse(int sym) {
+		if ((sym & 4) != 0 && ((sym & 3) == 1 || (sym & 3) == 2))
+			return sym ^ 3;
+		return sym;
+	}
+
+	public static String move(int sym, String gtp) {
+		Point p = Intersection.gtp2point(gtp);
+		p = apply(sym, p.x, p.y);
+		return Intersection.toGTPloc(p.x, p.y);
+	}
+
+	// per intersection array, indexed x + y * 19. anything past the board (the pass entry of policy) stays put
+	public static double[] array(int sym, double[] a) {
+		if (a == null)
+			return null;
+		double[] out = a.clone();
+		for (int y = 0; y < 19; y++)
+			for (int x = 0; x < 19; x++) {
+				Point p = apply(sym, x, y);
+				out[p.x + p.y * 19] = a[x + y * 19];
+			}
+		return out;
+	}
+
+	// a copy of kres as if the position had been turned by sym before asking katago.
+	// thisHash is dropped since it depends on the orientation; symHash doesn't.
+	public static KataAnalysisResult result(int sym, KataAnalysisResult kres) {
+		if (sym == 0)
+			return kres;
+		KataAnalysisResult out = new KataAnalysisResult();
+		out.id = kres.id;
+		out.isDuringSearch = kres.isDuringSearch;
+		out.turnNumber = kres.turnNumber;
+		if (kres.rootInfo != null) {
+			out.rootInfo = gson.fromJson(gson.toJson(kres.rootInfo), RootInfo.class);
+			out.rootInfo.thisHash = null;
+		}
+		if (kres.moveInfos != null) {
+			out.moveInfos = new ArrayList<>(kres.moveInfos.size());
+			for (MoveInfo mi: kres.moveInfos) {
+				MoveInfo m = gson.fromJson(gson.toJson(mi), MoveInfo.class);
+				m.move = move(sym, mi.move);
+				if (mi.pv != null) {
+					List<String> pv = new ArrayList<>(mi.pv.size());
+					for (String mv: mi.pv)
+						pv.add(move(sym, mv));
+					m.pv = pv;
+				}
+				out.moveInfos.add(m);
+			}
+		}
+		out.ownership = array(sym, kres.ownership);
+		out.ownershipStdev = array(sym, kres.ownershipStdev);
+		out.policy = array(sym, kres.policy);
+		out.humanPolicy = array(sym, kres.humanPolicy);
+		return out;
+	}
+}
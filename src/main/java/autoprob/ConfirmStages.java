@@ -0,0 +1,87 @@
+package autoprob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// intermediate visit levels (search.confirm_visits) a candidate problem has to survive before it gets
+// the full search.root_visits. most candidates fail the same checks on a second look, so a cheap
+// second look saves the deep search. counts are kept across all detectors, per visit level.
+public class ConfirmStages {
+	private static final Map<Integer, long[]> stats = new TreeMap<>(); // visits -> checked, rejected, visits saved
+	private static long survivorVisits = 0; // spent on stages by candidates that went on to the full search anyway
+
+	private final List<Integer> visits = new ArrayList<>();
+	private final int fullVisits;
+	private boolean rejectedAny = false; // only forced detections carry on after a rejection
+
+	public ConfirmStages(Properties props, int fullVisits) {
+		this.fullVisits = fullVisits;
+		for (String s: props.getProperty("search.confirm_visits", "").split(",")) {
+			if (s.isBlank()) continue;
+			int v = Integer.parseInt(s.trim());
+			if (v < fullVisits && (visits.isEmpty() || v > visits.get(visits.size() - 1)))
+				visits.add(v); // ascending, and below the full search or it's no saving
+		}
+	}
+
+	public int size() {
+		return visits.size();
+	}
+
+	public int visits(int stage) {
+		return visits.get(stage);
+	}
+
+	// visits spent on stages up to and including this one, for each query made per stage
+	private long spentThrough(int stage) {
+		long spent = 0;
+		for (int i = 0; i <= stage; i++)
+			spent += visits.get(i);
+		return spent;
+	}
+
+	public void passed(int stage) {
+		synchronized (stats) {
+			stats.computeIfAbsent(visits(stage), v -> new long[3])[0]++;
+		}
+	}
+
+	// a candidate dropped at this stage, which had made queriesPerStage queries at each level
+	public void rejected(int stage, int queriesPerStage) {
+		long saved = queriesPerStage * (fullVisits - spentThrough(stage));
+		rejectedAny = true;
+		synchronized (stats) {
+			long[] s = stats.computeIfAbsent(visits(stage), v -> new long[3]);
+			s[0]++;
+			s[1]++;
+			s[2] += Math.max(0, saved);
+		}
+	}
+
+	// made it through every stage, so the stage queries were extra
+	public void survived(int queriesPerStage) {
+		if (visits.isEmpty() || rejectedAny)
+			return;
+		synchronized (stats) {
+			survivorVisits += queriesPerStage * spentThrough(visits.size() - 1);
+		}
+	}
+
+	public static String summary() {
+		synchronized (stats) {
+			if (stats.isEmpty())
+				return null;
+			StringBuilder sb = new StringBuilder("confirm stages:");
+			for (var e: stats.entrySet()) {
+				long[] s = e.getValue();
+				sb.append(" ").append(e.getKey()).append(" visits: ").append(s[1]).append("/").append(s[0]).append(" rejected, ")
+						.append(s[2]).append(" visits saved;");
+			}
+			sb.append(" survivors spent ").append(survivorVisits).append(" extra visits");
+			return sb.toString();
+		}
+	}
+}
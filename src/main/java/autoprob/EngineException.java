@@ -0,0 +1,11 @@
+package autoprob;
+
+// katago can't answer: it's stopped, gave up restarting, or refused the query. the first two mean nothing
+// sent after this will get answered either. a refused query is our doing, and the next one is built the same way
+public class EngineException extends IllegalStateException {
+	private static final long serialVersionUID = 1L;
+
+	public EngineException(String message) {
+		super(message);
+	}
+}
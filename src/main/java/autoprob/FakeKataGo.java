@@ -0,0 +1,527 @@
+package autoprob;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import autoprob.go.Intersection;
+
+/**
+ * stand-in for the katago analysis engine, speaking the same json lines protocol on stdin/stdout.
+ * lets scanning, detection and path creation run end to end without katago or a gpu.
+ *
+ * answers come from fake.responses (katago output lines, matched by id and turn) when given,
+ * otherwise they are made up from the position: ownership from stone influence, policy from
+ * a seeded random field. the same position always gets the same answer, whatever its id.
+ * each turn takes fake.base_ms + fake.ms_per_visit * maxVisits, on fake.threads worker threads.
+ *
+ * with fake.tape it replays a KataTape instead: recorded answers come back at the times katago
+ * originally took (or at once, with fake.tape_timing=false), and anything not on the tape is made up.
+ *
+ * KataBrain starts this when katago=fake or kata.tape.replay is set, passing on the fake.* properties
+ * as name=value arguments.
+ */
+public class FakeKataGo {
+	private final double baseMs;
+	private final double msPerVisit;
+	private final int threads;
+	private final int maxMoves; // moveInfos per answer
+	private final Map<String, String> recorded = new HashMap<>(); // id|turn -> katago output line
+	private final Set<String> terminated = ConcurrentHashMap.newKeySet();
+	private final PriorityBlockingQueue<Job> jobs = new PriorityBlockingQueue<>();
+	private final AtomicLong jobCount = new AtomicLong();
+	private final PrintStream out;
+	private KataTape.Replay tape; // null unless replaying
+	private final boolean tapeTiming;
+	private final ScheduledExecutorService replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "fake katago replay");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicLong tapeHits = new AtomicLong(), tapeMisses = new AtomicLong();
+
+	private static class Job implements Comparable<Job> {
+		final JsonObject query;
+		final int turn;
+		final int priority;
+		final long seq;
+
+		Job(JsonObject query, int turn, int priority, long seq) {
+			this.query = query;
+			this.turn = turn;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if (priority != o.priority)
+				return Integer.compare(o.priority, priority); // higher first, like katago
+			return Long.compare(seq, o.seq);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties settings = new Properties();
+		for (String arg: args) {
+			int eq = arg.indexOf('=');
+			if (eq > 0)
+				settings.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new FakeKataGo(settings, System.out).run(new BufferedReader(new InputStreamReader(System.in)));
+	}
+
+	public FakeKataGo(Properties settings, PrintStream out) throws IOException {
+		this.out = out;
+		baseMs = Double.parseDouble(settings.getProperty("fake.base_ms", "5"));
+		msPerVisit = Double.parseDouble(settings.getProperty("fake.ms_per_visit", "0.01"));
+		threads = Integer.parseInt(settings.getProperty("fake.threads", "4"));
+		maxMoves = Integer.parseInt(settings.getProperty("fake.moves", "8"));
+		String responses = settings.getProperty("fake.responses", "").trim();
+		if (!responses.isEmpty())
+			loadResponses(Path.of(responses));
+		tapeTiming = Boolean.parseBoolean(settings.getProperty("fake.tape_timing", "true"));
+		String tapePath = settings.getProperty("fake.tape", "").trim();
+		if (!tapePath.isEmpty()) {
+			tape = new KataTape.Replay(tapePath);
+			System.err.println("fake katago: replaying " + tape.queries + " queries, " + tape.responses + " responses from " + tapePath);
+		}
+	}
+
+	private void loadResponses(Path path) throws IOException {
+		for (String line: Files.readAllLines(path)) {
+			if (!line.startsWith("{")) continue;
+			JsonObject res = JsonParser.parseString(line).getAsJsonObject();
+			if (!res.has("turnNumber") || isTrue(res, "isDuringSearch")) continue;
+			recorded.put(res.get("id").getAsString() + "|" + res.get("turnNumber").getAsInt(), line);
+		}
+		System.err.println("fake katago: " + recorded.size() + " recorded responses");
+	}
+
+	public void run(BufferedReader in) throws IOException {
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(this::work, "fake katago " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		println("Started, ready to begin handling requests");
+
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty()) continue;
+			JsonObject q;
+			try {
+				q = JsonParser.parseString(line).getAsJsonObject();
+			} catch (Exception e) {
+				println("{\"error\":\"Could not parse json\"}");
+				continue;
+			}
+			String id = q.get("id").getAsString();
+			if (q.has("action")) {
+				handleAction(q, id);
+				continue;
+			}
+			int priority = q.has("priority") ? q.get("priority").getAsInt() : 0;
+			KataTape.Recording rec = tape == null ? null : tape.find(q);
+			for (int turn: turns(q)) {
+				if (rec != null && rec.turns.containsKey(turn)) {
+					replay(id, turn, rec.turns.get(turn));
+					tapeHits.incrementAndGet();
+					continue;
+				}
+				if (tape != null)
+					tapeMisses.incrementAndGet();
+				jobs.add(new Job(q, turn, priority, jobCount.getAndIncrement()));
+			}
+		}
+		if (tape != null)
+			System.err.println("fake katago: tape answered " + tapeHits.get() + " turns, made up " + tapeMisses.get());
+		System.exit(0); // stdin closed, same as katago
+	}
+
+	private void handleAction(JsonObject q, String id) {
+		String action = q.get("action").getAsString();
+		if (action.equals("terminate")) {
+			String target = q.get("terminateId").getAsString();
+			if (q.has("turnNumbers")) {
+				for (JsonElement t: q.getAsJsonArray("turnNumbers"))
+					terminated.add(target + "|" + t.getAsInt());
+			} else {
+				terminated.add(target + "|*");
+			}
+		}
+		JsonObject ack = new JsonObject();
+		ack.addProperty("action", action);
+		ack.addProperty("id", id);
+		if (q.has("terminateId"))
+			ack.addProperty("terminateId", q.get("terminateId").getAsString());
+		println(ack.toString());
+	}
+
+	// send the recorded lines for a turn as katago did. in-search reports stop once the turn is terminated.
+	private void replay(String id, int turn, List<KataTape.TimedLine> lines) {
+		for (KataTape.TimedLine tl: lines) {
+			boolean partial = tl.line.contains("\"isDuringSearch\":true");
+			replayer.schedule(() -> {
+				if (partial && isTerminated(id, turn))
+					return;
+				println(KataTape.withId(tl.line, id));
+				if (!partial)
+					terminated.remove(id + "|" + turn);
+			}, tapeTiming ? tl.offset : 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private List<Integer> turns(JsonObject q) {
+		List<Integer> turns = new ArrayList<>();
+		if (q.has("analyzeTurns") && q.getAsJsonArray("analyzeTurns").size() > 0) {
+			for (JsonElement t: q.getAsJsonArray("analyzeTurns"))
+				turns.add(t.getAsInt());
+		} else {
+			turns.add(q.has("moves") ? q.getAsJsonArray("moves").size() : 0);
+		}
+		return turns;
+	}
+
+	private boolean isTerminated(String id, int turn) {
+		return terminated.contains(id + "|" + turn) || terminated.contains(id + "|*");
+	}
+
+	private void work() {
+		while (true) {
+			Job job;
+			try {
+				job = jobs.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				answer(job.query, job.turn);
+			} catch (Exception e) {
+				println("{\"error\":\"" + e + "\"}");
+			}
+		}
+	}
+
+	private void answer(JsonObject q, int turn) throws InterruptedException {
+		String id = q.get("id").getAsString();
+		int maxVisits = q.has("maxVisits") ? q.get("maxVisits").getAsInt() : 100;
+		long totalMs = (long) (baseMs + msPerVisit * maxVisits);
+		double reportEvery = q.has("reportDuringSearchEvery") ? q.get("reportDuringSearchEvery").getAsDouble() : 0;
+
+		String rec = recorded.get(id + "|" + turn);
+		Position pos = new Position(q, turn);
+
+		// "search", with progress reports if asked for
+		long stepMs = reportEvery > 0 ? Math.max(1, (long) (reportEvery * 1000)) : totalMs;
+		long spent = 0;
+		int visits = maxVisits;
+		while (spent < totalMs) {
+			long step = Math.min(stepMs, totalMs - spent);
+			Thread.sleep(step);
+			spent += step;
+			if (isTerminated(id, turn)) {
+				visits = (int) Math.max(1, maxVisits * spent / Math.max(1, totalMs));
+				break;
+			}
+			if (reportEvery > 0 && spent < totalMs && rec == null) {
+				int partial = (int) Math.max(1, maxVisits * spent / totalMs);
+				println(pos.result(id, turn, partial, true).toString());
+			}
+		}
+
+		if (rec != null)
+			println(rec);
+		else
+			println(pos.result(id, turn, visits, false).toString());
+		terminated.remove(id + "|" + turn);
+	}
+
+	private synchronized void println(String s) {
+		out.println(s);
+		out.flush();
+	}
+
+	private static boolean isTrue(JsonObject o, String name) {
+		return o.has(name) && !o.get(name).isJsonNull() && o.get(name).getAsBoolean();
+	}
+
+	// the board at one turn of a query, and the made up analysis of it
+	private class Position {
+		final JsonObject q;
+		final int[][] board = new int[19][19];
+		final String toMove;
+		final long seed;
+		Random rnd;
+
+		Position(JsonObject q, int turn) {
+			this.q = q;
+			if (q.has("initialStones")) {
+				for (JsonElement e: q.getAsJsonArray("initialStones")) {
+					JsonArray s = e.getAsJsonArray();
+					Point p = Intersection.gtp2point(s.get(1).getAsString());
+					board[p.x][p.y] = s.get(0).getAsString().equals("B") ? Intersection.BLACK : Intersection.WHITE;
+				}
+			}
+			String player = q.has("initialPlayer") ? q.get("initialPlayer").getAsString() : "B";
+			if (q.has("moves")) {
+				JsonArray moves = q.getAsJsonArray("moves");
+				for (int i = 0; i < turn && i < moves.size(); i++) {
+					JsonArray m = moves.get(i).getAsJsonArray();
+					int color = m.get(0).getAsString().equals("B") ? Intersection.BLACK : Intersection.WHITE;
+					Point p = Intersection.gtp2point(m.get(1).getAsString());
+					if (p.x < 19)
+						play(p.x, p.y, color);
+					player = color == Intersection.BLACK ? "W" : "B";
+				}
+			}
+			toMove = player;
+
+			// seed from the position only, so ids don't matter
+			StringBuilder sb = new StringBuilder(toMove);
+			for (int y = 0; y < 19; y++)
+				for (int x = 0; x < 19; x++)
+					sb.append(board[x][y]);
+			seed = sb.toString().hashCode();
+		}
+
+		// like katago's, the same for every rotation and reflection of the position
+		private String symHash() {
+			int best = Integer.MAX_VALUE;
+			for (int sym = 0; sym < BoardSymmetry.COUNT; sym++) {
+				int inv = BoardSymmetry.inverse(sym);
+				StringBuilder sb = new StringBuilder(toMove);
+				for (int y = 0; y < 19; y++)
+					for (int x = 0; x < 19; x++) {
+						Point p = BoardSymmetry.apply(inv, x, y);
+						sb.append(board[p.x][p.y]);
+					}
+				best = Math.min(best, sb.toString().hashCode());
+			}
+			return Integer.toHexString(best);
+		}
+
+		private void play(int x, int y, int color) {
+			board[x][y] = color;
+			int opp = color == Intersection.BLACK ? Intersection.WHITE : Intersection.BLACK;
+			int[][] dirs = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+			for (int[] d: dirs) {
+				int nx = x + d[0], ny = y + d[1];
+				if (on(nx, ny) && board[nx][ny] == opp)
+					captureIfDead(nx, ny);
+			}
+			captureIfDead(x, y); // suicide
+		}
+
+		private void captureIfDead(int x, int y) {
+			int color = board[x][y];
+			List<Point> group = new ArrayList<>();
+			boolean[][] seen = new boolean[19][19];
+			List<Point> stack = new ArrayList<>();
+			stack.add(new Point(x, y));
+			seen[x][y] = true;
+			boolean liberty = false;
+			while (!stack.isEmpty()) {
+				Point p = stack.remove(stack.size() - 1);
+				group.add(p);
+				int[][] dirs = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+				for (int[] d: dirs) {
+					int nx = p.x + d[0], ny = p.y + d[1];
+					if (!on(nx, ny) || seen[nx][ny]) continue;
+					if (board[nx][ny] == Intersection.EMPTY) liberty = true;
+					else if (board[nx][ny] == color) {
+						seen[nx][ny] = true;
+						stack.add(new Point(nx, ny));
+					}
+				}
+			}
+			if (!liberty) {
+				for (Point p: group)
+					board[p.x][p.y] = Intersection.EMPTY;
+			}
+		}
+
+		private boolean on(int x, int y) {
+			return x >= 0 && y >= 0 && x < 19 && y < 19;
+		}
+
+		// black positive, like katago with reportAnalysisWinratesAs = BLACK
+		double[] ownership() {
+			double[] own = new double[361];
+			for (int y = 0; y < 19; y++)
+				for (int x = 0; x < 19; x++) {
+					double infl = 0;
+					for (int dx = -4; dx <= 4; dx++)
+						for (int dy = -4; dy <= 4; dy++) {
+							if (!on(x + dx, y + dy)) continue;
+							int s = board[x + dx][y + dy];
+							if (s == Intersection.EMPTY) continue;
+							double w = 1.0 / (1 + Math.abs(dx) + Math.abs(dy));
+							infl += s == Intersection.BLACK ? w : -w;
+						}
+					own[x + y * 19] = Math.max(-1, Math.min(1, Math.tanh(infl) + rnd.nextGaussian() * 0.03));
+				}
+			return own;
+		}
+
+		// -1 on occupied points, like katago. index 361 is pass
+		double[] policy() {
+			double[] pol = new double[362];
+			double sum = 0;
+			for (int y = 0; y < 19; y++)
+				for (int x = 0; x < 19; x++) {
+					if (board[x][y] != Intersection.EMPTY) {
+						pol[x + y * 19] = -1;
+						continue;
+					}
+					double near = 0;
+					for (int dx = -2; dx <= 2; dx++)
+						for (int dy = -2; dy <= 2; dy++)
+							if (on(x + dx, y + dy) && board[x + dx][y + dy] != Intersection.EMPTY) near++;
+					double v = Math.exp(rnd.nextGaussian() * 1.5) * (0.2 + near);
+					pol[x + y * 19] = v;
+					sum += v;
+				}
+			pol[361] = 0.01 * sum;
+			sum += pol[361];
+			for (int i = 0; i < 362; i++)
+				if (pol[i] > 0) pol[i] /= sum;
+			return pol;
+		}
+
+		JsonObject result(String id, int turn, int visits, boolean during) {
+			rnd = new Random(seed);
+			double[] own = ownership();
+			double[] pol = policy();
+			double komi = q.has("komi") && !q.get("komi").isJsonNull() ? q.get("komi").getAsDouble() : 7.5;
+			double score = -komi;
+			for (double o: own) score += o;
+
+			JsonObject res = new JsonObject();
+			res.addProperty("id", id);
+			res.addProperty("isDuringSearch", during);
+			res.addProperty("turnNumber", turn);
+			res.add("moveInfos", moveInfos(pol, score, visits));
+
+			JsonObject root = new JsonObject();
+			root.addProperty("currentPlayer", toMove);
+			root.addProperty("scoreLead", score);
+			root.addProperty("scoreSelfplay", score);
+			root.addProperty("scoreStdev", 10.0);
+			root.addProperty("symHash", symHash());
+			root.addProperty("thisHash", Long.toHexString(seed));
+			root.addProperty("utility", winrate(score) * 2 - 1);
+			root.addProperty("visits", visits);
+			root.addProperty("winrate", winrate(score));
+			res.add("rootInfo", root);
+
+			if (isTrue(q, "includeOwnership"))
+				res.add("ownership", array(own));
+			if (isTrue(q, "includeOwnershipStdev")) {
+				double[] stdev = new double[361];
+				for (int i = 0; i < 361; i++)
+					stdev[i] = (1 - Math.abs(own[i])) * 0.5;
+				res.add("ownershipStdev", array(stdev));
+			}
+			if (isTrue(q, "includePolicy")) {
+				res.add("policy", array(pol));
+				JsonObject os = q.getAsJsonObject("overrideSettings");
+				if (os != null && os.has("humanSLProfile"))
+					res.add("humanPolicy", array(policy()));
+			}
+			return res;
+		}
+
+		// best policy moves, limited to allowMoves for the player to move
+		private JsonArray moveInfos(double[] pol, double score, int visits) {
+			Set<Integer> allowed = allowedMoves();
+			List<Integer> cands = new ArrayList<>();
+			for (int i = 0; i < 361; i++) {
+				if (pol[i] > 0 && (allowed == null || allowed.contains(i)))
+					cands.add(i);
+			}
+			cands.sort((a, b) -> Double.compare(pol[b], pol[a]));
+			if (cands.size() > maxMoves)
+				cands = cands.subList(0, maxMoves);
+			double polSum = 0;
+			for (int i: cands) polSum += pol[i];
+
+			JsonArray arr = new JsonArray();
+			int order = 0;
+			double sign = toMove.equals("B") ? 1 : -1;
+			for (int i: cands) {
+				String move = Intersection.toGTPloc(i % 19, i / 19);
+				double moveScore = score - sign * order * 0.7 + rnd.nextGaussian() * 0.2;
+				JsonObject mi = new JsonObject();
+				mi.addProperty("lcb", winrate(moveScore) - 0.01);
+				mi.addProperty("move", move);
+				mi.addProperty("order", order);
+				mi.addProperty("prior", pol[i]);
+				JsonArray pv = new JsonArray();
+				pv.add(move);
+				mi.add("pv", pv);
+				mi.addProperty("scoreLead", moveScore);
+				mi.addProperty("scoreMean", moveScore);
+				mi.addProperty("scoreSelfplay", moveScore);
+				mi.addProperty("scoreStdev", 10.0);
+				mi.addProperty("utility", winrate(moveScore) * 2 - 1);
+				mi.addProperty("utilityLcb", winrate(moveScore) * 2 - 1.02);
+				mi.addProperty("visits", Math.max(1, (int) (visits * pol[i] / polSum)));
+				mi.addProperty("winrate", winrate(moveScore));
+				mi.addProperty("weight", 1.0);
+				arr.add(mi);
+				order++;
+			}
+			return arr;
+		}
+
+		private Set<Integer> allowedMoves() {
+			if (!q.has("allowMoves")) return null;
+			for (JsonElement e: q.getAsJsonArray("allowMoves")) {
+				JsonObject am = e.getAsJsonObject();
+				if (!am.get("player").getAsString().equals(toMove)) continue;
+				Set<Integer> allowed = new java.util.HashSet<>();
+				for (JsonElement m: am.getAsJsonArray("moves")) {
+					Point p = Intersection.gtp2point(m.getAsString());
+					if (p.x < 19) allowed.add(p.x + p.y * 19);
+				}
+				return allowed;
+			}
+			return null;
+		}
+
+		private double winrate(double blackScore) {
+			return 1 / (1 + Math.exp(-blackScore / 8));
+		}
+
+		private JsonArray array(double[] a) {
+			JsonArray arr = new JsonArray(a.length);
+			for (double d: a)
+				arr.add(Math.round(d * 1e6) / 1e6);
+			return arr;
+		}
+	}
+}
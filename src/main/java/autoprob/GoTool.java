@@ -8,6 +8,9 @@ import autoprob.go.parse.Parser;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.KataQuery;
 import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.QueryCaller;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
 
 import java.awt.Point;
 import java.io.File;
@@ -17,10 +20,12 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 // KataRunner is a class that runs the KataGo engine to analyze Go games. the main function is estimating problem difficulty.
 public class GoTool {
@@ -160,24 +165,24 @@ public class GoTool {
     }
 
     private void runShowPolicyCommand(Properties props) throws Exception {
+        var brainStart = KataBrain.startAsync(props); // loads while we read the position
         Node node = loadPassedCsv(props);
         System.out.println("(" + node.outputSGF(true) + ")");
 
         createFortress(props, node);
 
         // use katago to generate policy
-        KataBrain brain = new KataBrain(props);
+        KataBrain brain = KataBrain.await(brainStart);
 
         QueryBuilder qb = new QueryBuilder();
         KataQuery query = qb.buildQuery(node);
         query.id = "auto:x";
         query.maxVisits = 1;
-        query.includePolicy = true;
+        query.setProfile(QueryProfile.POLICY);
+        query.setPriority(QueryPriority.INTERACTIVE);
         query.analyzeTurns.clear();
         query.analyzeTurns.add(0);
-        brain.doQuery(query); // kick off katago
-
-        KataAnalysisResult kres = brain.getResult(query.id, 0);
+        KataAnalysisResult kres = brain.doQuery(query).get(0).join(); // kick off katago and wait
         System.out.println("=> turn: " + kres.turnNumber + ", id: " + kres.id + ", score: " + df.format(kres.rootInfo.scoreLead) + ", ");
 
         kres.drawPolicy(node); // black is X, white @
@@ -195,6 +200,7 @@ public class GoTool {
     }
 
     private void runWritePolicyCommand(Properties props) throws Exception {
+        var brainStart = KataBrain.startAsync(props); // loads while we read the csv
         String outPathString = props.getProperty("csvout.path");
         PrintWriter writer = new PrintWriter(outPathString);
 
@@ -209,55 +215,83 @@ public class GoTool {
         String misHdr = props.getProperty("policy.mis_hdr", "mistakepolicy");
         writer.println(headerString + "," + solHdr + "," + misHdr);
 
-        KataBrain brain = new KataBrain(props);
+        KataBrain brain = KataBrain.await(brainStart);
         QueryBuilder qb = new QueryBuilder();
 
         int numPolicies = Integer.parseInt(props.getProperty("policy.max_count", "5"));
         boolean simplePolicy = Boolean.parseBoolean(props.getProperty("policy.simple", "false"));
 
-        // read all items until finished
+        // positions go to katago as scan queries, so the in-flight window and the queue limit hold back a big csv.
+        // they are only 1 visit each so katago can chew through them back to back, and they're written out in
+        // order once more than policy.batch are waiting, so results don't pile up either
+        int batch = Integer.parseInt(props.getProperty("policy.batch", "256"));
+        ArrayDeque<PolicyLine> waiting = new ArrayDeque<>();
+        int lineNum = 0; // in the query id, the csv's own ids can repeat and up to a batch are at katago at once
         while (scanner.hasNextLine()) {
             String s = scanner.nextLine();
             String id = s.split(",")[0];
-            writer.print(s); // start by copying existing
-            writer.print(",");
             Node node = csv2node(s);
             createFortress(props, node);
 
             KataQuery query = qb.buildQuery(node);
-            query.id = "auto:" + id;
+            query.id = "auto:" + id + ":" + lineNum++;
             query.maxVisits = 1;
-            query.includePolicy = true;
+            query.setProfile(QueryProfile.POLICY);
+            query.setPriority(QueryPriority.SCAN);
             query.analyzeTurns.clear();
             query.analyzeTurns.add(0);
-            brain.doQuery(query); // kick off katago
+            waiting.add(new PolicyLine(s, node, brain.doQuery(query).get(0))); // kick off katago
+            if (waiting.size() > batch)
+                writePolicyLine(waiting.poll(), writer, numPolicies, simplePolicy);
+        }
+        while (!waiting.isEmpty())
+            writePolicyLine(waiting.poll(), writer, numPolicies, simplePolicy);
 
-            KataAnalysisResult kres = brain.getResult(query.id, 0);
-            System.out.println();
-            System.out.println("=> parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead) + ", elo: " + s.split(",")[1]);
+        writer.flush();
+        writer.close();
+        System.out.println("complete to " + outPathString);
+    }
 
-            kres.drawPolicy(node);
-            // get top policy from result
-            var solMoves = getSolutionMoves(node);
-            var topSolPolicy = kres.getTopPolicy(numPolicies, solMoves, true);
-            for (KataAnalysisResult.Policy p : topSolPolicy) {
-                System.out.println("solution policy: " + df.format(p.policy) + " at " + p.x + "," + p.y);
-            }
-            writer.print(policy2string(topSolPolicy, simplePolicy));
-            writer.print(",");
+    // a csv line sent to katago, waiting to be written out
+    private static class PolicyLine {
+        final String line;
+        final Node node;
+        final CompletableFuture<KataAnalysisResult> result;
 
-            var topMistakePolicy = kres.getTopPolicy(numPolicies, solMoves, false);
-            for (KataAnalysisResult.Policy p : topMistakePolicy) {
-                System.out.println("mistake policy: " + df.format(p.policy) + " at " + p.x + "," + p.y);
-            }
-            writer.print(policy2string(topMistakePolicy, simplePolicy));
+        PolicyLine(String line, Node node, CompletableFuture<KataAnalysisResult> result) {
+            this.line = line;
+            this.node = node;
+            this.result = result;
+        }
+    }
+
+    private void writePolicyLine(PolicyLine pl, PrintWriter writer, int numPolicies, boolean simplePolicy) {
+        String s = pl.line;
+        Node node = pl.node;
+        writer.print(s); // start by copying existing
+        writer.print(",");
+
+        KataAnalysisResult kres = pl.result.join();
+        System.out.println();
+        System.out.println("=> parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead) + ", elo: " + s.split(",")[1]);
 
-            writer.println();
+        kres.drawPolicy(node);
+        // get top policy from result
+        var solMoves = getSolutionMoves(node);
+        var topSolPolicy = kres.getTopPolicy(numPolicies, solMoves, true);
+        for (KataAnalysisResult.Policy p : topSolPolicy) {
+            System.out.println("solution policy: " + df.format(p.policy) + " at " + p.x + "," + p.y);
         }
+        writer.print(policy2string(topSolPolicy, simplePolicy));
+        writer.print(",");
 
-        writer.flush();
-        writer.close();
-        System.out.println("complete to " + outPathString);
+        var topMistakePolicy = kres.getTopPolicy(numPolicies, solMoves, false);
+        for (KataAnalysisResult.Policy p : topMistakePolicy) {
+            System.out.println("mistake policy: " + df.format(p.policy) + " at " + p.x + "," + p.y);
+        }
+        writer.print(policy2string(topMistakePolicy, simplePolicy));
+
+        writer.println();
     }
 
     private void runSolveCommand(Properties props) throws Exception {
@@ -325,7 +359,7 @@ public class GoTool {
                 System.out.println("solved " + count + " files");
             }
 
-            brain.stopKataBrain();
+            brain.stop();
             writer.flush();
         }
 
@@ -334,7 +368,7 @@ public class GoTool {
         System.out.println("complete to " + outPathString);
     }
 
-    private static void solveSgfFile(Properties props, String sgfPath, KataBrain brain, PrintWriter writer) throws Exception {
+    private static void solveSgfFile(Properties props, String sgfPath, AnalysisEngine brain, PrintWriter writer) throws Exception {
         // get just the name of the file
         writer.print(Path.of(sgfPath).getFileName() + ",");
         // get sgf
@@ -357,12 +391,12 @@ public class GoTool {
             KataQuery query = qb.buildQuery(node);
             query.id = "auto:sgf";
             query.maxVisits = visits;
-            query.includePolicy = true;
+            query.setProfile(QueryProfile.POLICY);
+            query.setPriority(QueryPriority.INTERACTIVE);
+            query.caller = QueryCaller.SOLVE;
             query.analyzeTurns.clear();
             query.analyzeTurns.add(0);
-            brain.doQuery(query); // kick off katago
-
-            KataAnalysisResult kres = brain.getResult(query.id, 0);
+            KataAnalysisResult kres = brain.doQuery(query).get(0).join(); // kick off katago and wait
             System.out.println();
             System.out.println("=> parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead));
 
@@ -407,7 +441,7 @@ public class GoTool {
         }
 
         // record results in csv
-        writer.print(weightsName(brain.modelPath));
+        writer.print(weightsName(brain.getModelPath()));
         writer.print(",");
         writer.print(visits);
         writer.print(",");
@@ -11,6 +11,9 @@ import autoprob.katastruct.AllowMove;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.KataQuery;
 import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.QueryCaller;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -20,9 +23,11 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
 
 public class JosekiVal {
     private static final DecimalFormat df = new DecimalFormat("0.00");
+    private int queryCount = 0;
 
     public static void main(String[] args) throws Exception {
         System.out.println("josekival start...");
@@ -105,17 +110,19 @@ public class JosekiVal {
         if (path == null) {
             throw new RuntimeException("you must pass in a path");
         }
+        var brainStart = KataBrain.startAsync(props); // loads while we read the position
         Node baseNode = loadBasePosition(props);
 
         System.out.println("board afer " + path + ":");
         Node endNode = addPath(baseNode, path);
         System.out.println(endNode.board);
 
-        KataBrain brain = new KataBrain(props);
+        KataBrain brain = KataBrain.await(brainStart);
 
         evalToLimit(props, endNode, brain, nodeLimit);
 
-        brain.stopKataBrain();
+        System.out.println(brain.getCache().summary());
+        brain.stop();
 
         // output the sgf
         baseNode.addAct(new SizeAction(19));
@@ -136,7 +143,7 @@ public class JosekiVal {
     }
 
     // recurse to limit, evaluating each node
-    private void evalToLimit(Properties props, Node startNode, KataBrain brain, int nodeLimit) throws Exception {
+    private void evalToLimit(Properties props, Node startNode, AnalysisEngine brain, int nodeLimit) throws Exception {
         double minJosekiUrgency = Double.parseDouble(props.getProperty("joseki.min_urgency", "13.0"));
         double maxMistake = Double.parseDouble(props.getProperty("joseki.max_mistake", "0.5"));
         boolean refuteMistakes = Boolean.parseBoolean(props.getProperty("joseki.refute_mistakes", "true"));
@@ -216,7 +223,7 @@ public class JosekiVal {
         n.addAct(new CommentAction(sb.toString()));
     }
 
-    private JNodeVal evalNode(Properties props, Node node, KataBrain brain) throws Exception {
+    private JNodeVal evalNode(Properties props, Node node, AnalysisEngine brain) throws Exception {
 
         // step one: calculate the value of this move locally. is it the best local move?
         // evaluate katago for this move in particular
@@ -224,11 +231,19 @@ public class JosekiVal {
         // calc the delta
         // we also want to remember the absolute value here. a little tricky because not playing the more empty corner loses points.
 
-        var kresParent = queryNode(brain, node.mom, props);
+        // the parent, this move and a pass after it are independent, so all three go to katago together
+        var parentFuture = queryNode(brain, node.mom, props);
+        var moveFuture = queryNode(brain, node, props);
+        Node passNode = node.addBasicMove(19, 19);
+        var passFuture = queryNode(brain, passNode, props);
+        // clean up
+        node.removeChildNode(passNode);
+
+        var kresParent = parentFuture.join();
         System.out.println("parent score: " + df.format(kresParent.blackScore()));
         System.out.println(kresParent.printMoves(1));
 
-        var kres = queryNode(brain, node, props);
+        var kres = moveFuture.join();
         System.out.println("move score: " + df.format(kres.blackScore()));
         System.out.println(kres.printMoves(1));
         var followUps = getGoodFollowups(props, kres);
@@ -236,7 +251,7 @@ public class JosekiVal {
         // step two: calculate the value of playing here vs a tenuki to a different corner
         // this gives us urgency
 
-        double urgency = calcPassValue(brain, node, kres, props);
+        double urgency = calcPassValue(kres, passFuture.join());
 
         var moves = new ArrayList<JMove>();
         // create move options from followups
@@ -247,34 +262,38 @@ public class JosekiVal {
         return new JNodeVal(kresParent.blackScore(), kres.blackScore(), urgency, moves);
     }
 
-    private double calcPassValue(KataBrain brain, Node node, KataAnalysisResult kres, Properties props) throws Exception {
-        // first, pass
-        Node passNode = node.addBasicMove(19, 19);
-        KataAnalysisResult karPass = queryNode(brain, passNode, props);
-
-        // clean up
-        node.removeChildNode(passNode);
-
+    private double calcPassValue(KataAnalysisResult kres, KataAnalysisResult karPass) {
         MoveInfo mi = karPass.moveInfos.get(0);
         System.out.println("pass move: " + mi.move + ", visits: " + mi.visits + ", score: " + df.format(mi.scoreLead) + ", policy: " + df.format(mi.prior * 1000.0));
 
         return Math.abs(kres.blackScore() - karPass.blackScore());
     }
 
-    private KataAnalysisResult queryNode(KataBrain brain, Node n, Properties props) throws Exception {
+    private CompletableFuture<KataAnalysisResult> queryNode(AnalysisEngine brain, Node n, Properties props) {
         QueryBuilder qb = new QueryBuilder();
         KataQuery query = qb.buildQuery(n);
-        query.id = "auto:x";
-        query.includePolicy = true;
+        query.id = "joseki:" + (queryCount++); // several can be in flight, so ids must differ
+        query.setProfile(QueryProfile.SCORES); // only scores and moves are read
+        query.setPriority(QueryPriority.INTERACTIVE);
+        query.caller = QueryCaller.JOSEKI;
         query.analyzeTurns.clear();
         query.analyzeTurns.add(0);
         query.maxVisits = Integer.parseInt(props.getProperty("joseki.visits", "1000"));
 
         restrictToNearbyMoves(n, query, 3);
 
-        brain.doQuery(query); // kick off katago
-        KataAnalysisResult kres = brain.getResult(query.id, 0);
-        return kres;
+        AnalysisCache cache = brain.getCache();
+        if (cache.isEnabled()) {
+            String key = cache.key(n, query);
+            KataAnalysisResult cached = cache.lookup(key, query);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+            return brain.doQuery(query).get(0).thenApply(kres -> {
+                cache.store(key, query, kres);
+                return kres;
+            });
+        }
+        return brain.doQuery(query).get(0); // kick off katago
     }
 
     // adds to allow moves of query from top right
@@ -1,27 +1,133 @@
 package autoprob;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import autoprob.go.Node;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.KataQuery;
+import autoprob.katastruct.KataResultDecoder;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
+import autoprob.katastruct.StabilityCheck;
 
-// runs katago in a thread, can handle multiple simul queries, aggregates and returns them
-public class KataBrain {
-	private final Process process;
+// runs a pool of katago processes, can handle multiple simul queries, aggregates and returns them
+// each query goes to whichever process has the fewest turns outstanding
+// queries are queued and written by a single dispatcher thread, highest priority class first.
+// background scan queries wait for room in a window of kata.max_in_flight, the others go straight out.
+// the processes can also be connections to katago on other machines, see KataServer.
+public class KataBrain implements AnalysisEngine {
 	private final Properties props;
 	private boolean debugPrintKatago = false;
-	private BufferedReader reader;
-	private Map<String, KataAnalysisResult> results = new Hashtable<>();
+	// one slot per (id, turn) we are still waiting on. completed and removed by the reader thread.
+	private final Map<ResultKey, TurnSlot> pending = new ConcurrentHashMap<>();
 	private static final DecimalFormat df = new DecimalFormat("0.00");
 	public String modelPath;
-	private Thread thread;
+	private final List<KataProcess> pool = new ArrayList<>();
+	private final int maxRestarts;
+	private int nextProcess = 0; // rotates ties so an idle pool fills evenly
+	private int humanRouteMaxVisits = 0; // human policy queries up to this many visits go to the human engines
+	public final AnalysisCache cache;
+	public final KataMetrics metrics = new KataMetrics(this);
+	KataTape tape; // everything sent and received, when kata.tape.record is set
+	private CompletableFuture<Void> ready; // every process up and warmed up
+	private final Gson gson = new Gson();
+	// guarded by itself. scan queries block in doQuery while it holds queueSize of them.
+	private final PriorityQueue<QueuedQuery> queue = new PriorityQueue<>();
+	private final int queueSize;
+	private int inFlight = 0; // queries written to katago and not fully answered, guarded by queue
+	private final int maxInFlight;
+	private long queued = 0; // sequence number, keeps each class in fifo order
+	// per priority class: queries sent, total and max ms they sat in our queue
+	private final long[] waitCount = new long[QueryPriority.values().length];
+	private final long[] waitTotal = new long[QueryPriority.values().length];
+	private final long[] waitMax = new long[QueryPriority.values().length];
+	private Thread dispatcher;
+	private QueuedQuery sending; // taken off the queue by the dispatcher, not at a process yet. guarded by queue
+	private volatile boolean stopping = false;
+	// terminated because they were answered early or cancelled. katago may still send a final result, which we drop
+	private final Set<ResultKey> terminated = ConcurrentHashMap.newKeySet();
+	private final double reportEvery;
+	private final AtomicLong restartCount = new AtomicLong(), replayedCount = new AtomicLong();
+	private final long stallTimeout; // ms, 0 for no watchdog
+
+	// everything about one turn still waiting on katago
+	private static class TurnSlot {
+		final CompletableFuture<KataAnalysisResult> future = new CompletableFuture<>();
+		final Object owner; // who asked, for queries sent with an owner
+		final EarlyStop earlyStop; // null unless the query may stop early
+		final QueryProfile profile; // what was asked for, when checking profiles
+
+		TurnSlot(Object owner, EarlyStop earlyStop, QueryProfile profile) {
+			this.owner = owner;
+			this.earlyStop = earlyStop;
+			this.profile = profile;
+		}
+
+		void complete(KataAnalysisResult kres) {
+			if (profile != null)
+				kres.profile = profile;
+			future.complete(kres);
+		}
+	}
+	private final AtomicLong earlyStopChecked = new AtomicLong(), earlyStopCount = new AtomicLong();
+	private final AtomicLong visitsRequested = new AtomicLong(), visitsSaved = new AtomicLong();
+
+	// the caller's stability check, with the last in-search report seen
+	private static class EarlyStop {
+		final StabilityCheck check;
+		final int maxVisits;
+		KataAnalysisResult previous;
+
+		EarlyStop(StabilityCheck check, int maxVisits) {
+			this.check = check;
+			this.maxVisits = maxVisits;
+		}
+	}
+
+	// a query waiting to be written, with the futures its caller already holds
+	private static class QueuedQuery implements Comparable<QueuedQuery> {
+		final KataQuery query;
+		final Map<Integer, CompletableFuture<KataAnalysisResult>> futures;
+		final long seq;
+		final long queuedAt = System.currentTimeMillis();
+		volatile long bytes = 0; // size of the json sent
+		boolean cancelled = false; // its owner was cancelled while the dispatcher had it. guarded by queue
+
+		QueuedQuery(KataQuery query, Map<Integer, CompletableFuture<KataAnalysisResult>> futures, long seq) {
+			this.query = query;
+			this.futures = futures;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(QueuedQuery o) {
+			int c = query.priorityClass.compareTo(o.query.priorityClass); // enum order is most urgent first
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
 
 	public KataBrain(Properties props) throws Exception {
 		this(props, null);
@@ -30,94 +136,572 @@ public class KataBrain {
 	public KataBrain(Properties props, String modelPathOverride) throws Exception {
 		this.props = props;
 		String kataPath = props.getProperty("katago").trim();
-		String configPath = props.getProperty("kata.config").trim();
-		modelPath = props.getProperty("kata.model").trim();
+		String configPath = props.getProperty("kata.config", "").trim();
+		modelPath = props.getProperty("kata.model", "").trim();
 		String humanModelPath = props.getProperty("kata.human_model");
 		if (modelPathOverride != null) {
 			modelPath = modelPathOverride;
 		}
 		debugPrintKatago = Boolean.parseBoolean(props.getProperty("kata.debug_print", "false"));
+		int poolSize = Integer.parseInt(props.getProperty("kata.pool_size", "1"));
+		String threadsPerProcess = props.getProperty("kata.threads_per_process", "");
+		maxRestarts = Integer.parseInt(props.getProperty("kata.max_restarts", "2"));
+		cache = new AnalysisCache(props);
+		queueSize = Integer.parseInt(props.getProperty("kata.query_queue_size", "256"));
+		maxInFlight = Integer.parseInt(props.getProperty("kata.max_in_flight", "16"));
+		reportEvery = Double.parseDouble(props.getProperty("kata.early_stop.report_every", "0.2"));
+		stallTimeout = Long.parseLong(props.getProperty("kata.stall_timeout_secs", "600")) * 1000;
+		if (Boolean.parseBoolean(props.getProperty("kata.check_profiles", "false")))
+			KataAnalysisResult.checkProfiles = true;
 
-		// create a native katago process
-		ProcessBuilder processBuilder = new ProcessBuilder();
-		processBuilder.redirectErrorStream(true);
-		try {
-			// pass in human model if we have it
-			if (humanModelPath != null && !humanModelPath.isEmpty()) {
-				processBuilder.command(kataPath, "analysis", "-config", configPath, "-model", modelPath, "-human-model", humanModelPath);
+		String recordPath = props.getProperty("kata.tape.record", "").trim();
+		if (!recordPath.isEmpty())
+			tape = new KataTape(recordPath);
+		String replayPath = props.getProperty("kata.tape.replay", "").trim();
+
+		// katago=tcp://host:port,host2:port uses katago served by KataServer, kata.pool_size connections to each
+		List<String> servers = kataPath.startsWith("tcp://") ? List.of(kataPath.substring(6).split(",")) : null;
+		List<String> command = servers == null ? engineCommand(props, modelPath) : null;
+		if (!replayPath.isEmpty())
+			System.out.println("replaying katago from " + replayPath);
+		// so nothing made up gets stored as if a real model said it. a replay makes up answers for queries
+		// that aren't on the tape, and can't tell which stored results are which
+		if (!replayPath.isEmpty() || kataPath.equals("fake"))
+			modelPath = "fake";
+
+		// a separate light engine on just the human model, so 1 visit policy lookups don't queue behind deep searches
+		List<String> humanCommand = null;
+		int humanRoute = Integer.parseInt(props.getProperty("kata.human_route_max_visits", "0"));
+		if (humanRoute > 0 && servers != null) {
+			System.out.println("kata.human_route_max_visits is for local katago, not routing");
+		} else if (humanRoute > 0) {
+			if (!replayPath.isEmpty() || kataPath.equals("fake")) {
+				humanCommand = command;
+			} else if (humanModelPath != null && !humanModelPath.isEmpty()) {
+				humanCommand = new ArrayList<>(List.of(kataPath, "analysis", "-config", configPath, "-model", humanModelPath,
+						"-override-config", "numSearchThreads=" + props.getProperty("kata.human_threads_per_process", "1").trim()));
 			} else {
-				processBuilder.command(kataPath, "analysis", "-config", configPath, "-model", modelPath);
+				System.out.println("kata.human_route_max_visits needs kata.human_model, not routing");
 			}
-			process = processBuilder.start();
-			
-			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			
-			try {
-				thread = new Thread() {
-					public void run() {
-						System.out.println("katabrain Thread Running");
-						try {
-							KataBrain.this.processKataResponses();
-						} catch (InterruptedIOException e) {
-							System.out.println("Thread was interrupted during I/O");
-							Thread.currentThread().interrupt(); // Optional: re-interrupt the thread
-						} catch (Exception e) {
-							e.printStackTrace();
-						} finally {
-							if (process != null) {
-								process.destroy(); // Ensure process is terminated when done
-							}
-						}
-					}
-				};
+		}
+		int humanPoolSize = humanCommand == null ? 0 : Integer.parseInt(props.getProperty("kata.human_pool_size", "1"));
 
-				thread.start();
-			} catch (Exception e1) {
-				e1.printStackTrace();
+		try {
+			if (servers != null) {
+				for (String server: servers) {
+					String host = server.substring(0, server.lastIndexOf(':'));
+					int port = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1).trim());
+					for (int i = 0; i < poolSize; i++) {
+						KataProcess kp = new KataProcess(this, pool.size(), host, port);
+						kp.start();
+						pool.add(kp);
+					}
+				}
+				System.out.println("connected to katago at " + kataPath + ", " + poolSize + " connections each");
+			}
+			for (int i = 0; command != null && i < poolSize; i++) {
+				KataProcess kp = new KataProcess(this, i, command);
+				kp.start();
+				pool.add(kp);
+			}
+			for (int i = 0; i < humanPoolSize; i++) {
+				KataProcess kp = new KataProcess(this, poolSize + i, humanCommand, true);
+				kp.start();
+				pool.add(kp);
+			}
+			if (humanPoolSize > 0) {
+				humanRouteMaxVisits = humanRoute;
+				System.out.println("started " + humanPoolSize + " human model processes for human policy queries up to " + humanRoute + " visits");
 			}
 		} catch (Exception e) {
 			String err = e.getLocalizedMessage();
 			String message = String.format("Failed to start the engine.\n\nError: %s",
 					(err == null) ? "(No message)" : err);
 			System.out.println(message);
+			stopKataBrain();
+			throw e;
+		}
+		if (poolSize > 1 && servers == null)
+			System.out.println("started " + poolSize + " katago processes" + (threadsPerProcess.isEmpty() ? "" : ", " + threadsPerProcess + " threads each"));
+
+		dispatcher = new Thread(this::dispatchQueries, "katabrain dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		metrics.register();
+		if (stallTimeout > 0) {
+			Thread watchdog = new Thread(this::watchForStalls, "katabrain watchdog");
+			watchdog.setDaemon(true);
+			watchdog.start();
+		}
+
+		// katago loads the model (and may tune) before answering anything. a small query per process gets
+		// that and the first nn evaluations done now, instead of on whatever the caller asks first. they go
+		// out least loaded like any other query, so one process can end up with two and another with none
+		long startedAt = System.currentTimeMillis();
+		List<CompletableFuture<?>> loading = new ArrayList<>();
+		for (KataProcess kp: pool)
+			loading.add(kp.started);
+		int warmupVisits = Integer.parseInt(props.getProperty("kata.warmup_visits", "10"));
+		if (warmupVisits > 0) {
+			for (int i = 0; i < pool.size(); i++)
+				loading.add(warmUp(i, warmupVisits, pool.get(i).human));
+		}
+		ready = CompletableFuture.allOf(loading.toArray(new CompletableFuture<?>[0]))
+				.whenComplete((v, ex) -> {
+					if (ex == null)
+						System.out.println("katago ready after " + (System.currentTimeMillis() - startedAt) + " ms");
+				});
+	}
+
+	// starts a brain on another thread, so config and sgf loading can carry on while katago comes up
+	public static CompletableFuture<KataBrain> startAsync(Properties props) {
+		return startAsync(props, null);
+	}
+
+	public static CompletableFuture<KataBrain> startAsync(Properties props, String modelPathOverride) {
+		CompletableFuture<KataBrain> brain = new CompletableFuture<>();
+		Thread t = new Thread(() -> {
+			try {
+				brain.complete(new KataBrain(props, modelPathOverride));
+			} catch (Throwable e) {
+				brain.completeExceptionally(e);
+			}
+		}, "katabrain start");
+		t.setDaemon(true);
+		t.start();
+		return brain;
+	}
+
+	// the brain from startAsync, with the constructor's exception if it failed
+	public static KataBrain await(CompletableFuture<KataBrain> brain) throws Exception {
+		try {
+			return brain.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
 			throw e;
 		}
 	}
 
+	// completes once every katago process has started and the warm-up queries are answered. a process
+	// the warm-ups missed may still be slow on its first query. queries sent before then are fine, they
+	// just wait in katago
+	public CompletableFuture<Void> ready() {
+		return ready;
+	}
+
+	private CompletableFuture<KataAnalysisResult> warmUp(int i, int visits, boolean human) {
+		KataQuery query = new QueryBuilder().buildQuery(new Node(null));
+		query.id = "warmup:" + i;
+		query.humanEngine = human;
+		query.maxVisits = visits;
+		query.setProfile(QueryProfile.POLICY);
+		query.setHumanSLrank("10k"); // wake up the human model too, if there is one
+		query.setPriority(QueryPriority.INTERACTIVE);
+		query.analyzeTurns.clear();
+		query.analyzeTurns.add(0);
+		return doQuery(query).get(0);
+	}
+
+	// command line for one local engine: katago with the configured models, or the fake engine
+	// for katago=fake and tape replays. KataServer uses this too
+	public static List<String> engineCommand(Properties props, String modelPath) {
+		String kataPath = props.getProperty("katago").trim();
+		String configPath = props.getProperty("kata.config", "").trim();
+		String humanModelPath = props.getProperty("kata.human_model");
+		String threadsPerProcess = props.getProperty("kata.threads_per_process", "");
+		String replayPath = props.getProperty("kata.tape.replay", "").trim();
+
+		List<String> command;
+		if (!replayPath.isEmpty()) {
+			command = fakeCommand(props);
+			command.add("fake.tape=" + replayPath);
+		} else if (kataPath.equals("fake")) {
+			command = fakeCommand(props);
+		} else {
+			command = new ArrayList<>(List.of(kataPath, "analysis", "-config", configPath, "-model", modelPath));
+			// pass in human model if we have it
+			if (humanModelPath != null && !humanModelPath.isEmpty()) {
+				command.add("-human-model");
+				command.add(humanModelPath);
+			}
+			// split the cores between the processes instead of using the config file's thread count
+			if (!threadsPerProcess.isEmpty()) {
+				command.add("-override-config");
+				command.add("numSearchThreads=" + threadsPerProcess.trim());
+			}
+		}
+		return command;
+	}
+
+	// FakeKataGo in a child jvm with our classpath, given the fake.* settings
+	private static List<String> fakeCommand(Properties props) {
+		String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"), FakeKataGo.class.getName()));
+		for (String name: props.stringPropertyNames()) {
+			if (name.startsWith("fake."))
+				command.add(name + "=" + props.getProperty(name));
+		}
+		return command;
+	}
+
+	public AnalysisCache getCache() {
+		return cache;
+	}
+
+	public String getModelPath() {
+		return modelPath;
+	}
+
+	public void stop() {
+		stopKataBrain();
+	}
+
 	public void stopKataBrain() {
-		if (thread != null) {
-			thread.interrupt(); // Interrupt the thread, causing blocking I/O to throw an exception
+		stopping = true;
+		if (dispatcher != null)
+			dispatcher.interrupt();
+		for (KataProcess kp: pool) {
+			kp.stop();
+			kp.started.completeExceptionally(new EngineException("katago stopped before it was ready"));
+		}
+		synchronized (queue) {
+			queue.clear();
+			queue.notifyAll();
+		}
+		failPending(new EngineException("katago stopped before answering"));
+		System.out.println(getQueueWaitSummary());
+		if (earlyStopChecked.get() > 0)
+			System.out.println(getEarlyStopSummary());
+		if (restartCount.get() > 0)
+			System.out.println("katago restarts: " + restartCount.get() + ", queries replayed: " + replayedCount.get());
+		System.out.println(metrics.summary());
+		metrics.unregister();
+		if (tape != null)
+			tape.close();
+	}
+
+	// queries waiting to be written to katago
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	// queries written to katago and not fully answered yet
+	public int getInFlight() {
+		synchronized (queue) {
+			return inFlight;
+		}
+	}
+
+	// how long queries of each class waited in our queue before being sent
+	public String getQueueWaitSummary() {
+		StringBuilder sb = new StringBuilder("queue wait:");
+		synchronized (queue) {
+			for (QueryPriority p: QueryPriority.values()) {
+				int i = p.ordinal();
+				if (waitCount[i] == 0) continue;
+				sb.append(" ").append(p.name().toLowerCase()).append(" ").append(waitCount[i]).append(" queries, avg ms: ")
+						.append(df.format(waitTotal[i] / (double) waitCount[i])).append(", max ms: ").append(waitMax[i]).append(";");
+			}
+		}
+		return sb.toString();
+	}
+
+	public String getEarlyStopSummary() {
+		long requested = visitsRequested.get();
+		return "early stop: " + earlyStopCount.get() + " of " + earlyStopChecked.get() + " stopped, saved " + visitsSaved.get() + " visits ("
+				+ df.format(requested == 0 ? 0 : 100.0 * visitsSaved.get() / requested) + "% of requested)";
+	}
+
+	// dispatcher thread: takes the most urgent query, scan queries wait for room in the in-flight window, sends
+	private void dispatchQueries() {
+		while (!stopping) {
+			QueuedQuery qq;
+			synchronized (queue) {
+				while (true) {
+					qq = queue.peek();
+					if (qq != null && (qq.query.priorityClass != QueryPriority.SCAN || inFlight < maxInFlight))
+						break;
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				queue.poll();
+				sending = qq;
+				inFlight++;
+				queue.notifyAll(); // room for a blocked producer
+				int i = qq.query.priorityClass.ordinal();
+				long wait = System.currentTimeMillis() - qq.queuedAt;
+				waitCount[i]++;
+				waitTotal[i] += wait;
+				waitMax[i] = Math.max(waitMax[i], wait);
+			}
+			final long sentAt = System.currentTimeMillis();
+			boolean sent = false;
+			try {
+				synchronized (queue) {
+					sent = !qq.cancelled;
+				}
+				if (sent)
+					send(qq);
+			} catch (Exception e) {
+				System.out.println("failed to send katago query " + qq.query.id + ": " + e.getLocalizedMessage());
+				for (int turn: qq.futures.keySet())
+					failKey(new ResultKey(qq.query.id, turn), e);
+			}
+			boolean cancelled;
+			synchronized (queue) {
+				sending = null;
+				cancelled = qq.cancelled;
+			}
+			if (cancelled)
+				cancelDispatched(qq, sent);
+			trackCompletion(qq.query, qq.queuedAt, sentAt, qq.bytes, qq.futures.values());
+		}
+	}
+
+	// cancel() came while the dispatcher had this query. if it went out anyway, katago is told to stop
+	private void cancelDispatched(QueuedQuery qq, boolean sent) {
+		int cancelled = 0;
+		if (sent)
+			cancelled = terminateOutstanding(key -> key.id.equals(qq.query.id) && qq.futures.containsKey(key.turn));
+		for (int turn: qq.futures.keySet())
+			cancelled += cancelKey(new ResultKey(qq.query.id, turn)) ? 1 : 0;
+		if (cancelled > 0)
+			System.out.println("cancelled " + cancelled + " katago queries");
+	}
+
+	// the in-flight slot frees up once every turn is answered, or failed. visits are added up turn by turn,
+	// so nothing here keeps a whole game's answers alive after the caller is done with each one
+	private void trackCompletion(KataQuery query, long queuedAt, long sentAt, long bytes, Collection<CompletableFuture<KataAnalysisResult>> futures) {
+		AtomicInteger left = new AtomicInteger(futures.size());
+		AtomicLong visits = new AtomicLong();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		for (var future: futures) {
+			future.whenComplete((kres, ex) -> {
+				if (ex != null)
+					failure.compareAndSet(null, ex);
+				else if (kres.rootInfo != null && kres.rootInfo.visits != null)
+					visits.addAndGet(kres.rootInfo.visits);
+				if (left.decrementAndGet() > 0)
+					return;
+				synchronized (queue) {
+					inFlight--;
+					queue.notifyAll();
+				}
+				recordMetrics(query, queuedAt, sentAt, bytes, visits.get(), failure.get());
+			});
+		}
+	}
+
+	private void recordMetrics(KataQuery query, long queuedAt, long sentAt, long bytes, long visits, Throwable ex) {
+		if (ex instanceof CancellationException || (ex != null && ex.getCause() instanceof CancellationException))
+			return; // nobody wanted the answer, says nothing about the engine
+		metrics.record(query.caller, queuedAt, sentAt, System.currentTimeMillis(), ex == null ? visits : 0, bytes, ex != null);
+	}
+
+	private void send(QueuedQuery qq) {
+		String qjson = gson.toJson(queryJson(qq.query));
+		qq.bytes = qjson.length();
+		sendTurns(qq.query, qq.futures.keySet(), qjson);
+	}
+
+	// when checking profiles katago is asked for everything, so a read outside the profile is reported, not a crash
+	private JsonObject queryJson(KataQuery query) {
+		JsonObject json = gson.toJsonTree(query, KataQuery.class).getAsJsonObject();
+		if (KataAnalysisResult.checkProfiles && query.profile != null) {
+			json.addProperty("includeOwnership", true);
+			json.addProperty("includeOwnershipStdev", true);
+			json.addProperty("includePolicy", true);
+		}
+		return json;
+	}
+
+	// write to the least loaded live process, remembering the query there in case it has to be replayed
+	private void sendTurns(KataQuery query, Collection<Integer> turns, String qjson) {
+		while (true) {
+			KataProcess kp = chooseProcess(isHumanQuery(query));
+			synchronized (kp) {
+				if (kp.dead) continue; // died after we chose it, choose again
+				if (kp.load() == 0)
+					kp.lastOutput = System.currentTimeMillis(); // idle until now, that wasn't a stall
+				for (int turn: turns)
+					kp.outstanding.add(new ResultKey(query.id, turn));
+				kp.sent.put(query.id, query);
+				kp.send(qjson);
+			}
+			return;
+		}
+	}
+
+	// a turn is no longer at this process. forget the query once none of its turns are.
+	private void turnDone(KataProcess kp, ResultKey key) {
+		kp.outstanding.remove(key);
+		KataQuery query = kp.sent.get(key.id);
+		if (query == null)
+			return;
+		for (int turn: queryTurns(query)) {
+			if (kp.outstanding.contains(new ResultKey(key.id, turn)))
+				return;
+		}
+		kp.sent.remove(key.id);
+	}
+
+	// called from a process's reader thread when it exits without being asked to.
+	// restarts it, then sends every turn nobody got an answer for again.
+	void processDied(KataProcess kp) {
+		Set<ResultKey> lost;
+		List<KataQuery> sent;
+		synchronized (kp) {
+			kp.dead = true;
+			lost = new HashSet<>(kp.outstanding);
+			kp.outstanding.clear();
+			sent = new ArrayList<>(kp.sent.values());
+			kp.sent.clear();
+		}
+
+		if (kp.restarts >= maxRestarts) {
+			System.out.println("katago process " + kp.index + " died, not restarting after " + kp.restarts + " restarts");
+			kp.retired = true;
+		} else {
+			kp.restarts++;
+			restartCount.incrementAndGet();
+			System.out.println("katago process " + kp.index + " died, restarting (" + kp.restarts + " of " + maxRestarts + ")");
+			try {
+				kp.start();
+			} catch (IOException ex) {
+				System.out.println("failed to restart katago process " + kp.index + ": " + ex.getLocalizedMessage());
+				kp.retired = true;
+			}
 		}
-		if (process != null) {
+		synchronized (this) {
+			notifyAll(); // anyone waiting in chooseProcess can look again
+		}
+
+		int replayedTurns = 0;
+		for (KataQuery query: sent) {
+			List<Integer> turns = new ArrayList<>();
+			for (int turn: queryTurns(query)) {
+				ResultKey key = new ResultKey(query.id, turn);
+				if (!lost.contains(key))
+					continue;
+				if (pending.containsKey(key))
+					turns.add(turn);
+				else
+					terminated.remove(key); // answered early or cancelled, nobody wants it
+			}
+			if (turns.isEmpty())
+				continue;
 			try {
-				process.destroy(); // Attempt to terminate the process
-				process.waitFor(5, java.util.concurrent.TimeUnit.SECONDS); // Wait for the process to terminate
-				process.destroyForcibly(); // Force termination if not already done
+				JsonObject json = queryJson(query);
+				json.add("analyzeTurns", gson.toJsonTree(turns));
+				sendTurns(query, turns, gson.toJson(json));
+				replayedCount.incrementAndGet();
+				replayedTurns += turns.size();
+			} catch (Exception e) {
+				// no process left to take it
+				Exception fail = new EngineException("katago gave up after " + restartCount.get() + " restarts: " + e.getLocalizedMessage());
+				for (int turn: turns)
+					failKey(new ResultKey(query.id, turn), fail);
+			}
+		}
+		if (replayedTurns > 0)
+			System.out.println("replayed " + replayedTurns + " unanswered turns from katago process " + kp.index);
+	}
+
+	public long getRestarts() {
+		return restartCount.get();
+	}
+
+	// queries sent again after the process working on them died
+	public long getReplayed() {
+		return replayedCount.get();
+	}
+
+	// watchdog thread: kills any process that has work but hasn't said anything for stallTimeout,
+	// its reader then sees the pipe close and the usual restart and replay happens
+	private void watchForStalls() {
+		while (!stopping) {
+			try {
+				Thread.sleep(Math.min(stallTimeout, 5000));
 			} catch (InterruptedException e) {
-				System.out.println("Failed to terminate the process cleanly");
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (KataProcess kp: pool) {
+				if (kp.dead || kp.retired || kp.load() == 0)
+					continue;
+				if (now - kp.lastOutput > stallTimeout) {
+					System.out.println("katago process " + kp.index + " silent for " + (now - kp.lastOutput) / 1000 + "s with " + kp.load() + " turns outstanding, killing it");
+					kp.kill();
+				}
 			}
 		}
-		if (reader != null) {
+	}
+
+	// cheap lookups that only want the human policy: a human profile, the policy, no ownership, and few visits.
+	// the detectors and scans also set a human profile and ask for policy, but they read ownership and
+	// moveInfos, which have to come from the main model
+	private boolean isHumanQuery(KataQuery query) {
+		if (query.humanEngine != null)
+			return query.humanEngine && humanRouteMaxVisits > 0;
+		return humanRouteMaxVisits > 0 && query.overrideSettings != null && query.overrideSettings.humanSLProfile != null
+				&& Boolean.TRUE.equals(query.includePolicy) && !Boolean.TRUE.equals(query.includeOwnership)
+				&& query.maxVisits != null && query.maxVisits <= humanRouteMaxVisits;
+	}
+
+	// least loaded live process of the kind asked for. waits while processes are being restarted.
+	// if every human engine is gone, the main ones take their queries, they have the human model too
+	private synchronized KataProcess chooseProcess(boolean human) {
+		while (true) {
+			KataProcess best = null;
+			boolean restarting = false;
+			for (int i = 0; i < pool.size(); i++) {
+				KataProcess kp = pool.get((nextProcess + i) % pool.size());
+				if (kp.retired || kp.human != human) continue;
+				if (kp.dead) {
+					restarting = true;
+					continue;
+				}
+				if (best == null || kp.load() < best.load())
+					best = kp;
+			}
+			if (best != null) {
+				nextProcess = (nextProcess + 1) % pool.size();
+				return best;
+			}
+			if (!restarting && human) {
+				human = false;
+				continue;
+			}
+			if (!restarting)
+				throw new EngineException("no katago process is running");
 			try {
-				reader.close(); // Close the reader to release any blocked I/O
-			} catch (IOException e) {
-				System.out.println("Failed to close the reader properly");
-				e.printStackTrace();
+				wait(1000);
+			} catch (InterruptedException e) {
+				throw new EngineException("interrupted waiting for katago to restart");
 			}
 		}
 	}
 
-	protected void processKataResponses() throws Exception {
+	protected void processKataResponses(BufferedReader reader, KataProcess kp) throws Exception {
 		boolean printSummary = Boolean.parseBoolean(props.getProperty("kata.print_summary_result", "false"));
-		Gson gson = new Gson();
+		KataResultDecoder decoder = new KataResultDecoder(); // one per reader thread, it keeps scratch space
 		String line;
 		long startTime = 0;
 		int total = 0;
 		boolean started = false;
 		while ((line = reader.readLine()) != null) {
+			kp.lastOutput = System.currentTimeMillis();
+			if (tape != null && line.startsWith("{"))
+				tape.response(line);
 			if (line.startsWith("{\"error")) {
 				System.out.println("bad analysis: " + line);
-				//TODO: process error
+				queryRefused(kp, line);
 				continue;
 			}
 			if (line.startsWith("Uncaught exception")) {
@@ -131,22 +715,41 @@ public class KataBrain {
 			if (debugPrintKatago)
 				System.out.println("kata: " + line);
 
+			if (line.startsWith("{") && line.contains("\"action\"")) {
+				continue; // katago acknowledging a terminate
+			}
+
 			if (line.startsWith("{")) {
-				KataAnalysisResult kres = gson.fromJson(line, KataAnalysisResult.class);
+				KataAnalysisResult kres = decoder.decode(line);
+				if (kres.id == null || kres.turnNumber == null) {
+					System.out.println("katago: " + line); // a warning, about a field it didn't use say
+					continue;
+				}
+				if (kp.human && kres.humanPolicy == null)
+					kres.humanPolicy = kres.policy; // the human model is this engine's main model
+				if (Boolean.TRUE.equals(kres.isDuringSearch)) {
+					checkEarlyStop(kres, kp);
+					continue;
+				}
 				total++;
 				double avgTime = (System.currentTimeMillis() - startTime) / (double)total;
 				if (printSummary)
 					System.out.println("> KBRAIN parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead) + ", avg ms: " + df.format(avgTime));
 
-				synchronized (this) {
-					// record result
-					results.put(kres.id + kres.turnNumber, kres);
-				}
+				// hand result to whoever is waiting on it
+				ResultKey key = new ResultKey(kres.id, kres.turnNumber);
+				turnDone(kp, key);
+				TurnSlot slot = pending.remove(key);
+				if (slot != null)
+					slot.complete(kres);
+				else if (!terminated.remove(key))
+					System.out.println("unclaimed katago result: " + kres.id + ", turn: " + kres.turnNumber);
 			}
 			else if (line.contains("ready to begin handling requests")) {
 				System.out.println(line);
 				startTime = System.currentTimeMillis();
 				started = true;
+				kp.started.complete(null);
 			}
 			else {
 				if (started) {
@@ -157,33 +760,183 @@ public class KataBrain {
 		}
 	}
 
-	public void doQuery(KataQuery query) throws Exception {
-		Gson gson = new Gson();
-		String qjson = gson.toJson(query, KataQuery.class);
-//		System.out.println("KENG (" + "x" + ") moves: " + query.moves.size() + ", visits: " + query.maxVisits + ", query: " + qjson);
-		
-		PrintWriter pw = new PrintWriter(process.getOutputStream());
-		pw.println(qjson);
-		pw.flush();
+	// katago won't answer a query it found fault with, so whoever waits on its turns gets the error instead
+	private void queryRefused(KataProcess kp, String line) {
+		JsonObject error;
+		try {
+			error = JsonParser.parseString(line).getAsJsonObject();
+		} catch (Exception e) {
+			return; // not json after all, already printed
+		}
+		if (!error.has("id"))
+			return; // katago couldn't even read the id, nothing to match it to
+		String id = error.get("id").getAsString();
+		EngineException fail = new EngineException("katago refused query " + id + ": " + error.get("error").getAsString());
+		List<ResultKey> keys = new ArrayList<>();
+		synchronized (kp) {
+			for (ResultKey key: kp.outstanding) {
+				if (key.id.equals(id))
+					keys.add(key);
+			}
+			for (ResultKey key: keys)
+				turnDone(kp, key);
+		}
+		for (ResultKey key: keys)
+			failKey(key, fail);
 	}
 
-	// tries until finds it
-	// TODO: respond to errors
-	public KataAnalysisResult getResult(String id, int targetTurn) {
-//		System.out.println("brain fetching: " + id + " : " + targetTurn);
-		String nm = id + targetTurn; // lookup
-		while (true) {
-			synchronized (this) {
-				// getting the value removes it from our map
-				if (results.containsKey(nm)) {
-//					System.out.println("brain found: " + id + " : " + targetTurn);
-					return results.remove(nm);
+	// an in-search report. if the caller's check says it has settled, answer with it and tell katago to stop.
+	private void checkEarlyStop(KataAnalysisResult kres, KataProcess kp) {
+		ResultKey key = new ResultKey(kres.id, kres.turnNumber);
+		TurnSlot slot = pending.get(key);
+		if (slot == null || slot.earlyStop == null)
+			return;
+		EarlyStop es = slot.earlyStop;
+		if (!es.check.isStable(es.previous, kres)) {
+			es.previous = kres;
+			return;
+		}
+		if (!pending.remove(key, slot))
+			return;
+		terminated.add(key);
+		sendTerminate(kp, kres.id, List.of(kres.turnNumber));
+		earlyStopCount.incrementAndGet();
+		visitsSaved.addAndGet(Math.max(0, es.maxVisits - kres.rootInfo.visits));
+		slot.complete(kres);
+	}
+
+	private void sendTerminate(KataProcess kp, String id, List<Integer> turns) {
+		Map<String, Object> terminate = new LinkedHashMap<>();
+		terminate.put("id", "stop:" + id);
+		terminate.put("action", "terminate");
+		terminate.put("terminateId", id);
+		terminate.put("turnNumbers", turns);
+		kp.send(gson.toJson(terminate));
+	}
+
+	// drop every query sent with this owner: queued ones never go out, katago stops working on the rest.
+	// the owner's futures are cancelled, so anyone joining them gets a CancellationException.
+	public void cancel(Object owner) {
+		List<QueuedQuery> unsent = new ArrayList<>();
+		synchronized (queue) {
+			queue.removeIf(qq -> {
+				if (qq.query.owner != owner) return false;
+				unsent.add(qq);
+				return true;
+			});
+			// in neither the queue nor a process yet, the dispatcher cancels it once it's done with it
+			if (sending != null && sending.query.owner == owner)
+				sending.cancelled = true;
+			queue.notifyAll();
+		}
+		int cancelled = 0;
+		for (QueuedQuery qq: unsent) {
+			for (int turn: qq.futures.keySet())
+				cancelled += cancelKey(new ResultKey(qq.query.id, turn)) ? 1 : 0;
+		}
+
+		// already at katago
+		cancelled += terminateOutstanding(key -> {
+			TurnSlot slot = pending.get(key);
+			return slot != null && slot.owner == owner;
+		});
+		if (cancelled > 0)
+			System.out.println("cancelled " + cancelled + " katago queries");
+	}
+
+	// stops the turns katago is still working on that match, per process and query id. returns how many were cancelled
+	private int terminateOutstanding(Predicate<ResultKey> which) {
+		int cancelled = 0;
+		for (KataProcess kp: pool) {
+			Map<String, List<Integer>> turnsById = new LinkedHashMap<>();
+			synchronized (kp) {
+				for (ResultKey key: kp.outstanding) {
+					if (!pending.containsKey(key) || !which.test(key)) continue;
+					turnsById.computeIfAbsent(key.id, k -> new ArrayList<>()).add(key.turn);
+					turnDone(kp, key);
+					terminated.add(key);
+					cancelled += cancelKey(key) ? 1 : 0;
+				}
+				if (!kp.dead) {
+					turnsById.forEach((id, turns) -> sendTerminate(kp, id, turns));
 				}
 			}
+		}
+		return cancelled;
+	}
+
+	private boolean cancelKey(ResultKey key) {
+		TurnSlot slot = pending.remove(key);
+		return slot != null && slot.future.cancel(false);
+	}
+
+	// queues the query for katago. returns one future per analyzed turn, completed as katago answers each one.
+	// scan queries block while the queue is full, so a scan can't run arbitrarily far ahead of the engine.
+	// the more urgent classes never wait here, there are only ever a few of them.
+	public Map<Integer, CompletableFuture<KataAnalysisResult>> doQuery(KataQuery query) {
+		if (stopping)
+			throw new EngineException("katago is stopped");
+		Map<Integer, CompletableFuture<KataAnalysisResult>> futures = new LinkedHashMap<>();
+		Map<ResultKey, TurnSlot> slots = new LinkedHashMap<>();
+		// register before sending so a fast answer can't beat us
+		for (int turn: queryTurns(query)) {
+			EarlyStop es = null;
+			if (query.stopWhen != null) {
+				es = new EarlyStop(query.stopWhen, query.maxVisits);
+				earlyStopChecked.incrementAndGet();
+				visitsRequested.addAndGet(query.maxVisits);
+			}
+			TurnSlot slot = new TurnSlot(query.owner, es, KataAnalysisResult.checkProfiles ? query.profile : null);
+			futures.put(turn, slot.future);
+			if (pending.putIfAbsent(new ResultKey(query.id, turn), slot) == null)
+				slots.put(new ResultKey(query.id, turn), slot);
+		}
+		if (slots.size() < futures.size()) {
+			// answers are matched by id and turn, so ours couldn't be told from the first caller's
+			EngineException dup = new EngineException("query " + query.id + " is already waiting on katago");
+			slots.forEach(pending::remove);
+			for (var future: futures.values())
+				future.completeExceptionally(dup);
+			return futures;
+		}
+		if (query.stopWhen != null && query.reportDuringSearchEvery == null)
+			query.reportDuringSearchEvery = reportEvery;
+		synchronized (queue) {
 			try {
-				Thread.sleep(1);
+				while (query.priorityClass == QueryPriority.SCAN && queue.size() >= queueSize && !stopping)
+					queue.wait();
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (int turn: futures.keySet())
+					failKey(new ResultKey(query.id, turn), e);
+				return futures;
 			}
+			queue.add(new QueuedQuery(query, futures, queued++));
+			queue.notifyAll();
 		}
+		return futures;
+	}
+
+	// turns katago will answer for this query. with no analyzeTurns it only does the final position.
+	private List<Integer> queryTurns(KataQuery query) {
+		if (query.analyzeTurns != null && !query.analyzeTurns.isEmpty())
+			return query.analyzeTurns;
+		List<Integer> turns = new ArrayList<>();
+		turns.add(query.moves == null ? 0 : query.moves.size());
+		return turns;
+	}
+
+	// wake up anyone still waiting, there will be no answer
+	private void failPending(Exception e) {
+		for (ResultKey key: pending.keySet()) {
+			failKey(key, e);
+		}
+	}
+
+	private void failKey(ResultKey key, Exception e) {
+		terminated.remove(key);
+		TurnSlot slot = pending.remove(key);
+		if (slot != null)
+			slot.future.completeExceptionally(e);
 	}
 }
@@ -0,0 +1,186 @@
+package autoprob;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import autoprob.katastruct.QueryCaller;
+
+// latency and throughput of the queries a KataBrain has answered, per caller.
+// registered as an mbean so jconsole or similar can watch a long scan.
+public class KataMetrics implements KataMetricsMBean {
+	private static final DecimalFormat df = new DecimalFormat("0.00");
+	private static final long[] BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, Long.MAX_VALUE};
+	private static int registered = 0;
+
+	private final KataBrain brain;
+	private final CallerStats[] stats = new CallerStats[QueryCaller.values().length];
+	private long startTime = System.currentTimeMillis();
+	private ObjectName name; // null unless registered
+
+	private static class CallerStats {
+		long count = 0;
+		long failed = 0;
+		final long[] histogram = new long[BUCKETS.length]; // end-to-end ms
+		long totalMs = 0, queueMs = 0, engineMs = 0;
+		long visits = 0;
+		long queryBytes = 0; // json written to katago
+	}
+
+	public KataMetrics(KataBrain brain) {
+		this.brain = brain;
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = new CallerStats();
+	}
+
+	// publish on the platform mbean server. a failure here only costs us the metrics
+	public void register() {
+		try {
+			ObjectName n;
+			synchronized (KataMetrics.class) {
+				n = new ObjectName("autoprob:type=KataBrain,id=" + (registered++));
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+			name = n;
+		} catch (Exception e) {
+			System.out.println("could not register katago metrics: " + e.getLocalizedMessage());
+		}
+	}
+
+	// when the brain stops, so brains made over and over don't pile up on the mbean server
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			System.out.println("could not unregister katago metrics: " + e.getLocalizedMessage());
+		}
+		name = null;
+	}
+
+	// one query fully answered (or failed). times are System.currentTimeMillis
+	public synchronized void record(QueryCaller caller, long queuedAt, long sentAt, long doneAt, long visits, long queryBytes, boolean failed) {
+		CallerStats cs = stats[caller.ordinal()];
+		cs.queryBytes += queryBytes;
+		if (failed) {
+			cs.failed++;
+			return;
+		}
+		long total = doneAt - queuedAt;
+		cs.count++;
+		cs.totalMs += total;
+		cs.queueMs += sentAt - queuedAt;
+		cs.engineMs += doneAt - sentAt;
+		cs.visits += visits;
+		int b = 0;
+		while (total > BUCKETS[b])
+			b++;
+		cs.histogram[b]++;
+	}
+
+	@Override
+	public int getInFlight() {
+		return brain.getInFlight();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return brain.getQueueDepth();
+	}
+
+	@Override
+	public synchronized long getCompleted() {
+		long n = 0;
+		for (CallerStats cs: stats)
+			n += cs.count;
+		return n;
+	}
+
+	@Override
+	public long getRestarts() {
+		return brain.getRestarts();
+	}
+
+	@Override
+	public long getReplayed() {
+		return brain.getReplayed();
+	}
+
+	@Override
+	public synchronized long getQueryBytes() {
+		long n = 0;
+		for (CallerStats cs: stats)
+			n += cs.queryBytes;
+		return n;
+	}
+
+	@Override
+	public synchronized double getVisitsPerSecond() {
+		long visits = 0;
+		for (CallerStats cs: stats)
+			visits += cs.visits;
+		double secs = (System.currentTimeMillis() - startTime) / 1000.0;
+		return secs <= 0 ? 0 : visits / secs;
+	}
+
+	@Override
+	public synchronized String[] getCallerSummaries() {
+		List<String> lines = new ArrayList<>();
+		for (QueryCaller c: QueryCaller.values()) {
+			CallerStats cs = stats[c.ordinal()];
+			if (cs.count == 0 && cs.failed == 0) continue;
+			double n = Math.max(1, cs.count);
+			lines.add(c.name().toLowerCase() + ": " + cs.count + " queries" + (cs.failed > 0 ? " (" + cs.failed + " failed)" : "")
+					+ ", ms p50/p90/p99: " + (long) percentile(cs, 50) + "/" + (long) percentile(cs, 90) + "/" + (long) percentile(cs, 99)
+					+ ", avg queue ms: " + df.format(cs.queueMs / n) + ", avg engine ms: " + df.format(cs.engineMs / n)
+					+ ", avg query bytes: " + (long) (cs.queryBytes / Math.max(1.0, cs.count + cs.failed))
+					+ ", visits/engine sec: " + df.format(cs.engineMs == 0 ? 0 : cs.visits * 1000.0 / cs.engineMs));
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public long[] getLatencyBucketsMs() {
+		return BUCKETS.clone();
+	}
+
+	@Override
+	public synchronized long[] latencyHistogram(String caller) {
+		return stats[QueryCaller.valueOf(caller.toUpperCase()).ordinal()].histogram.clone();
+	}
+
+	@Override
+	public synchronized double latencyPercentile(String caller, double percentile) {
+		return percentile(stats[QueryCaller.valueOf(caller.toUpperCase()).ordinal()], percentile);
+	}
+
+	// upper bound of the bucket the percentile falls in
+	private double percentile(CallerStats cs, double percentile) {
+		if (cs.count == 0) return 0;
+		long target = (long) Math.ceil(cs.count * percentile / 100.0);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS.length; b++) {
+			seen += cs.histogram[b];
+			if (seen >= target)
+				return b == BUCKETS.length - 1 ? BUCKETS[b - 1] : BUCKETS[b];
+		}
+		return BUCKETS[BUCKETS.length - 2];
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = new CallerStats();
+		startTime = System.currentTimeMillis();
+	}
+
+	public String summary() {
+		String[] lines = getCallerSummaries();
+		if (lines.length == 0) return "katago metrics: no queries";
+		return "katago metrics, visits/sec: " + df.format(getVisitsPerSecond()) + "\n  " + String.join("\n  ", lines);
+	}
+}
@@ -0,0 +1,22 @@
+package autoprob;
+
+// engine metrics published over JMX, see KataMetrics
+public interface KataMetricsMBean {
+	int getInFlight();
+	int getQueueDepth();
+	long getCompleted();
+	long getRestarts();
+	long getReplayed();
+	// total json written to katago
+	long getQueryBytes();
+	// visits katago returned per wall clock second since start, or since the last reset
+	double getVisitsPerSecond();
+	// one line per caller: count, latency percentiles, queue wait vs engine time, query size, visits per engine second
+	String[] getCallerSummaries();
+
+	// upper bounds in ms of the histogram buckets, the last one is open ended
+	long[] getLatencyBucketsMs();
+	long[] latencyHistogram(String caller);
+	double latencyPercentile(String caller, double percentile);
+	void reset();
+}
@@ -0,0 +1,184 @@
+package autoprob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import autoprob.katastruct.KataQuery;
+
+// one katago analysis process in the brain's pool. owns the pipe in both directions.
+// or a connection to katago served by KataServer on another machine, which talks the same way.
+public class KataProcess {
+	private static final int CONNECT_TRIES = 5; // a restarting server needs a moment
+
+	private final KataBrain brain;
+	private final List<String> command;
+	private final String host; // set for a connection instead of a local process
+	private final int port;
+	public final int index;
+	public final boolean human; // runs only the human model, for cheap human policy lookups
+	private Process process;
+	private Socket socket;
+	private BufferedReader reader;
+	private PrintWriter writer;
+	private Thread thread;
+	private volatile boolean stopping = false;
+	volatile boolean dead = false; // reader has exited, waiting on a restart
+	volatile boolean retired = false; // out of restarts, never used again
+	public int restarts = 0;
+
+	// (id, turn) keys sent to this process that haven't been answered yet. its size is our load.
+	final Set<ResultKey> outstanding = ConcurrentHashMap.newKeySet();
+	// queries by id with turns still outstanding, replayed elsewhere if we die
+	final Map<String, KataQuery> sent = new ConcurrentHashMap<>();
+	volatile long lastOutput = System.currentTimeMillis(); // for the stall watchdog
+	// completed when katago first says it's ready for requests
+	final CompletableFuture<Void> started = new CompletableFuture<>();
+
+	public KataProcess(KataBrain brain, int index, List<String> command) {
+		this(brain, index, command, false);
+	}
+
+	public KataProcess(KataBrain brain, int index, List<String> command, boolean human) {
+		this.brain = brain;
+		this.index = index;
+		this.command = command;
+		this.human = human;
+		this.host = null;
+		this.port = 0;
+	}
+
+	public KataProcess(KataBrain brain, int index, String host, int port) {
+		this.brain = brain;
+		this.index = index;
+		this.command = null;
+		this.human = false;
+		this.host = host;
+		this.port = port;
+	}
+
+	public void start() throws IOException {
+		if (host != null) {
+			connect();
+		} else {
+			// create a native katago process
+			ProcessBuilder processBuilder = new ProcessBuilder(command);
+			processBuilder.redirectErrorStream(true);
+			process = processBuilder.start();
+
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			writer = new PrintWriter(process.getOutputStream());
+		}
+		dead = false;
+		lastOutput = System.currentTimeMillis();
+
+		thread = new Thread(() -> {
+			System.out.println("katabrain Thread Running (process " + index + ")");
+			try {
+				brain.processKataResponses(reader, this);
+			} catch (InterruptedIOException e) {
+				System.out.println("Thread was interrupted during I/O");
+				Thread.currentThread().interrupt(); // Optional: re-interrupt the thread
+			} catch (Exception e) {
+				if (!stopping)
+					e.printStackTrace();
+			} finally {
+				close(); // Ensure process is terminated when done
+				if (!stopping)
+					brain.processDied(this);
+			}
+		});
+		thread.start();
+	}
+
+	private void connect() throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				socket = new Socket(host, port);
+				break;
+			} catch (IOException e) {
+				if (attempt == CONNECT_TRIES)
+					throw e;
+				try {
+					Thread.sleep(1000L * attempt);
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("interrupted connecting to " + host + ":" + port);
+				}
+			}
+		}
+		socket.setTcpNoDelay(true); // queries are single lines, don't hold them back
+		reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	private void close() {
+		if (process != null)
+			process.destroy();
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	public int load() {
+		return outstanding.size();
+	}
+
+	public boolean isAlive() {
+		if (socket != null)
+			return !socket.isClosed();
+		return process != null && process.isAlive();
+	}
+
+	public synchronized void send(String line) {
+		if (brain.tape != null)
+			brain.tape.query(line);
+		writer.println(line);
+		writer.flush();
+	}
+
+	// hung process, force it down. the reader thread sees the pipe close and reports the death.
+	public void kill() {
+		if (process != null)
+			process.destroyForcibly();
+		close();
+	}
+
+	public void stop() {
+		stopping = true;
+		if (thread != null) {
+			thread.interrupt(); // Interrupt the thread, causing blocking I/O to throw an exception
+		}
+		close();
+		if (process != null) {
+			try {
+				process.destroy(); // Attempt to terminate the process
+				process.waitFor(5, java.util.concurrent.TimeUnit.SECONDS); // Wait for the process to terminate
+				process.destroyForcibly(); // Force termination if not already done
+			} catch (InterruptedException e) {
+				System.out.println("Failed to terminate the process cleanly");
+			}
+		}
+		if (reader != null) {
+			try {
+				reader.close(); // Close the reader to release any blocked I/O
+			} catch (IOException e) {
+				System.out.println("Failed to close the reader properly");
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -2,33 +2,54 @@ package autoprob;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import autoprob.go.Intersection;
 import autoprob.go.Node;
 import autoprob.go.parse.Parser;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.KataQuery;
+import autoprob.katastruct.QueryCaller;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
 
 public class KataRunner {
 	private static final DecimalFormat df = new DecimalFormat("0.00");
 
 	private Properties props;
+	private AnalysisStore store; // results from earlier runs, null if not configured
 	
 	public KataRunner(Properties prop) {
 		this.props = prop;
 	}
 
 	public void startEngine(VisDetector vis) throws Exception {
+		startEngine(vis, KataBrain.startAsync(props));
+	}
+
+	// brainStart is a brain already coming up, from KataBrain.startAsync
+	public void startEngine(VisDetector vis, CompletableFuture<KataBrain> brainStart) throws Exception {
 		try {
-			KataBrain brain = new KataBrain(props);
+			String storePath = props.getProperty("store.path", "").trim();
+			if (!storePath.isEmpty())
+				store = new AnalysisStore(storePath);
 			
 			// choose a mode depending on properties
 			String path = props.getProperty("path");
@@ -41,6 +62,7 @@ public class KataRunner {
 				return;
 			}
 			System.out.println("reading from: " + path + ", is file: " + f.isFile());
+			KataBrain brain = KataBrain.await(brainStart);
 			int searchVisits = Integer.parseInt(props.getProperty("search.visits"));
 			// may point to file, or to directory
 			if (f.isFile()) {
@@ -71,23 +93,17 @@ public class KataRunner {
 			} else {
 				// directory search
 				File dir = new File(path);
-				File[] files = dir.listFiles();
-				int cnt = 0;
-				int targetProblems = Integer.parseInt(props.getProperty("search.directory.max_finds"));;
-				int foundProblems = 0;
-				int i = readIterationCount(dir);
-				for (; i < files.length; i++) {
-					writeIterationCounter(i, dir);
-					System.out.println(cnt + " -- examining: " + files[i].getName());
-					int found = testAnalyze(brain, files[i].getAbsolutePath(), files[i].getName(), vis, 0, searchVisits);
-					foundProblems += found;
-					cnt++;
-					if (found > 0) {
-						System.out.println("searched games: " + cnt + ", total problems found: " + foundProblems);
-						if (foundProblems >= targetProblems)
-							return;
-					}
-					
+				File[] files = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".sgf"));
+				Arrays.sort(files); // listFiles order can change between runs, the journal doesn't depend on it but the log reads better
+				if (new File(dir, "zpos").exists())
+					System.out.println("-> zpos is no longer used, the scan journal (" + ScanJournal.FILE_NAME + ") remembers what's done");
+				ScanJournal journal = new ScanJournal(dir);
+				try {
+					// several games at a time, see ScanPipeline
+					new ScanPipeline(this, brain, vis, props).scan(files, journal);
+				} finally {
+					System.out.println(journal.summary());
+					journal.close();
 				}
 			}
 
@@ -99,35 +115,48 @@ public class KataRunner {
 					(err == null) ? "(No message)" : err);
 			System.out.println(message);
 			throw e;
+		} finally {
+			String confirmed = ConfirmStages.summary();
+			if (confirmed != null)
+				System.out.println(confirmed);
+			if (store != null) {
+				System.out.println(store.summary());
+				store.close();
+			}
 		}
 	}
 
-	private int readIterationCount(File dir) {
-		var f = new File(dir, "zpos");
-		try {
-			var fr = new FileReader(f);
-			String s = Files.readString(f.toPath());
-			System.out.println("-> starting dir scan at " + s);
-			return Integer.parseInt(s) + 1;
-		} catch (IOException e) {
-			return 0;
-		}
-	}
+	// a game read, parsed and sent to katago, waiting for its turns to be checked
+	public static class ScanGame {
+		public final String fileName;
+		public final String sgf;
+		public final Node node;
+		public final KataQuery query;
+		public final Map<Integer, CompletableFuture<KataAnalysisResult>> futures;
+		public final int maxVisits; // the visits the detectors want, query has fewer on a prefilter pass
+		public final boolean prefilter; // query is the cheap first pass (search.prefilter_visits)
 
-	private void writeIterationCounter(int i, File dir) {
-		var f = new File(dir, "zpos");
-		try {
-			var fw = new FileWriter(f);
-			fw.write("" + i);
-			fw.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		ScanGame(String fileName, String sgf, Node node, KataQuery query, Map<Integer, CompletableFuture<KataAnalysisResult>> futures, int maxVisits, boolean prefilter) {
+			this.fileName = fileName;
+			this.sgf = sgf;
+			this.node = node;
+			this.query = query;
+			this.futures = futures;
+			this.maxVisits = maxVisits;
+			this.prefilter = prefilter;
 		}
 	}
 
-	private int testAnalyze(KataBrain brain, String sgfPath, String fileName, VisDetector vis, int onlySearchTurn, int maxVisits) throws Exception {
-		System.out.println("testing game " + fileName + ": " + " at " + onlySearchTurn  + " with " + maxVisits + " visits");
+	private int testAnalyze(AnalysisEngine brain, String sgfPath, String fileName, VisDetector vis, int onlySearchTurn, int maxVisits) throws Exception {
+		ScanGame game = loadGame(brain, sgfPath, fileName, onlySearchTurn, maxVisits, null);
+		if (game == null)
+			return 0;
+		return checkGame(brain, game, onlySearchTurn, det -> vis.newDetection(brain, det, fileName));
+	}
 
+	// reads and parses the game, then sends its query. null if the sgf can't be used.
+	// owner is set on the query, so the game can be cancelled (see KataBrain.cancel)
+	public ScanGame loadGame(AnalysisEngine brain, String sgfPath, String fileName, int onlySearchTurn, int maxVisits, Object owner) throws IOException {
 		// get sgf
 		String sgf;
 		try {
@@ -135,9 +164,15 @@ public class KataRunner {
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.out.println("bailing on this SGF");
-			return 0;
+			return null;
 		}
-		
+		return parseGame(brain, sgf, fileName, onlySearchTurn, maxVisits, owner);
+	}
+
+	// loadGame for an sgf already read
+	public ScanGame parseGame(AnalysisEngine brain, String sgf, String fileName, int onlySearchTurn, int maxVisits, Object owner) throws IOException {
+		System.out.println("testing game " + fileName + ": " + " at " + onlySearchTurn  + " with " + maxVisits + " visits");
+
 		// load SGF
 		var parser = new Parser();
 		Node node;
@@ -148,15 +183,19 @@ public class KataRunner {
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.out.println("bad sgf");
-			return 0;
+			return null;
 		}
 		
-		QueryBuilder qb = new QueryBuilder();
-		KataQuery query = qb.buildQuery(node);
-		query.id = "auto:" + fileName;
-		query.maxVisits = maxVisits;
-		query.includePolicy = true;
-		query.setHumanSLrank("10k"); // default rank
+		// a two-pass scan first looks at every turn with few visits, see checkGame
+		int prefilterVisits = Integer.parseInt(props.getProperty("search.prefilter_visits", "0"));
+		boolean prefilter = prefilterVisits > 0 && prefilterVisits < maxVisits && onlySearchTurn == 0 && !isShapeMode();
+		KataQuery query;
+		if (prefilter) {
+			query = buildScanQuery(node, "pre:" + fileName, prefilterVisits, owner);
+			query.setProfile(QueryProfile.OWNERSHIP); // the cheap checks read ownership and policy
+		} else {
+			query = buildScanQuery(node, "auto:" + fileName, maxVisits, owner);
+		}
 		// reduce search?
 		if (onlySearchTurn > 0) {
 			query.analyzeTurns.clear();
@@ -164,68 +203,165 @@ public class KataRunner {
 			query.analyzeTurns.add(onlySearchTurn + 1);
 		}
 		
-		brain.doQuery(query); // kick off katago
+		return new ScanGame(fileName, sgf, node, query, fetchResults(brain, query, sgf), maxVisits, prefilter);
+	}
+
+	private KataQuery buildScanQuery(Node node, String id, int maxVisits, Object owner) {
+		QueryBuilder qb = new QueryBuilder();
+		KataQuery query = qb.buildQuery(node);
+		query.id = id;
+		query.maxVisits = maxVisits;
+		query.setProfile(QueryProfile.FULL); // detection reads ownership and policy, stdev is shown and stored
+		query.setHumanSLrank("10k"); // default rank
+		query.setPriority(QueryPriority.SCAN);
+		query.caller = QueryCaller.SCAN;
+		query.owner = owner;
+		return query;
+	}
+
+	private boolean isShapeMode() {
+		return props.containsKey("type") && props.getProperty("type").equals("shape");
+	}
 
-		boolean shapeMode = (props.containsKey("type") &&
-				props.getProperty("type").equals("shape"));
+	// runs the detectors over the game's turns as they come back. each valid problem goes to accept,
+	// which says whether it was taken. returns how many were.
+	// on a prefilter game the cheap answers pick the turn pairs worth a look, and only those are asked again at full visits
+	public int checkGame(AnalysisEngine brain, ScanGame game, int onlySearchTurn, Predicate<ProblemDetector> accept) throws Exception {
+		Node node = game.node;
+		Map<Integer, CompletableFuture<KataAnalysisResult>> futures = game.futures; // emptied as turns are used, so answers can go
+		boolean shapeMode = isShapeMode();
 		int shapeMaxTurn = Integer.parseInt(props.getProperty("shape.max_turn", "40"));
 
-        Node n = node;
-        int foundCount = 0;
-        int targetTurn = onlySearchTurn; // next one to parse
-        // move node pointer
-        for (int adv = 0; adv < targetTurn; adv++)
-        	n = n.favoriteSon();
-
-        KataAnalysisResult kprev = null;
-        for (int resultsProcessed = 0; resultsProcessed < query.analyzeTurns.size(); resultsProcessed++) {
-        	KataAnalysisResult kres = brain.getResult(query.id, targetTurn);
-        	System.out.println("=> turn: " + kres.turnNumber + ", id: " + kres.id + ", score: " + df.format(kres.rootInfo.scoreLead) + ", " + resultsProcessed + ", for: " + kres.rootInfo.currentPlayer);
+        // forcing only applies when looking at a single move
+        boolean forceDetect = onlySearchTurn > 0 && Boolean.parseBoolean(props.getProperty("forceproblem", "false"));
+
+        // the game line by turn. the pair (turn - 1, turn) is checked from the node at turn - 1
+        List<Node> line = new ArrayList<>();
+        for (Node n = node; n != null; n = n.favoriteSon())
+        	line.add(n);
+
+        Set<Integer> pairs = new TreeSet<>(); // the later turn of each pair to check
+        for (int turn: futures.keySet()) {
+        	if (futures.containsKey(turn - 1) && !(shapeMode && turn >= shapeMaxTurn))
+        		pairs.add(turn);
+        }
+
+        KataQuery query = game.query;
+        if (game.prefilter) {
+        	int total = pairs.size();
+        	Set<Integer> survivors = new TreeSet<>();
+        	forEachPair(query, futures, new HashSet<>(pairs), (pair, kprev, knext) -> {
+        		Node n = pair - 1 < line.size() ? line.get(pair - 1) : null;
+        		if (n != null && new ProblemDetector(kprev, knext, n, props).passesPrefilter())
+        			survivors.add(pair);
+        	});
+        	System.out.println("prefilter: " + survivors.size() + " of " + total + " turn pairs left for " + game.maxVisits + " visits");
+        	if (survivors.isEmpty()) {
+        		System.out.println("found problems: 0");
+        		return 0;
+        	}
+        	query = buildScanQuery(node, "auto:" + game.fileName, game.maxVisits, query.owner);
+        	Set<Integer> turns = new TreeSet<>();
+        	for (int pair: survivors) {
+        		turns.add(pair - 1);
+        		turns.add(pair);
+        	}
+        	query.analyzeTurns = new ArrayList<>(turns);
+        	futures = fetchResults(brain, query, game.sgf);
+        	pairs = survivors;
+        }
+
+        var foundCount = new AtomicInteger();
+        forEachPair(query, futures, new HashSet<>(pairs), (pair, kprev, knext) -> {
+        	Node n = pair - 1 < line.size() ? line.get(pair - 1) : null;
+        	ProblemDetector detector;
+        	if (shapeMode) {
+        		detector = new ShapeProblemDetector(kprev, knext, n, props);
+        	} else {
+        		detector = new ProblemDetector(kprev, knext, n, props);
+        	}
+        	detector.detectProblem(brain, forceDetect);
+        	if (detector.validProblem) {
+        		// valid problem according to detector
+        		if (accept.test(detector)) {
+        			System.out.println("found problems: " + foundCount.incrementAndGet());
+        		} else {
+        			System.out.println("problem not accepted");
+        		}
+        	}
+        });
+		System.out.println("found problems: " + foundCount.get());
+		return foundCount.get();
+	}
+
+	private interface PairCheck {
+		// pair is the later turn
+		void check(int pair, KataAnalysisResult kprev, KataAnalysisResult knext) throws Exception;
+	}
+
+	// katago finishes turns in whatever order its search threads get to them. each (turn - 1, turn) pair
+	// goes to check as soon as both answers are in, and an answer is dropped once both of its
+	// pairs are done, so a long game doesn't pile up in memory behind one slow early turn.
+	// pairsLeft is used up
+	private void forEachPair(KataQuery query, Map<Integer, CompletableFuture<KataAnalysisResult>> futures, Set<Integer> pairsLeft, PairCheck check) throws Exception {
+        var done = new LinkedBlockingQueue<Integer>();
+        futures.forEach((turn, future) -> future.whenComplete((kres, ex) -> done.add(turn)));
+        Map<Integer, KataAnalysisResult> results = new HashMap<>();
+        int resultsProcessed = 0;
+        while (!pairsLeft.isEmpty()) {
+        	int turn = done.take();
+        	KataAnalysisResult kres = futures.remove(turn).join();
+        	System.out.println("=> turn: " + kres.turnNumber + ", id: " + kres.id + ", score: " + df.format(kres.rootInfo.scoreLead) + ", " + (resultsProcessed++) + ", for: " + kres.rootInfo.currentPlayer);
         	if (kres.turnNumber > 0)
         		System.out.println(query.moves.get(kres.turnNumber - 1));
-				
-			targetTurn++;
-
-			if (shapeMode && targetTurn > shapeMaxTurn)
-				break;
-
-			if (kprev != null) {
-				// run detector
-				boolean forceDetect = false;
-				// maybe override valid if instructed
-				if (onlySearchTurn > 0) {
-					// only when looking at a single move
-					if (props.containsKey("forceproblem") &&
-							Boolean.parseBoolean(props.getProperty("forceproblem"))) {
-						forceDetect = true;
-					}
-				}
-				ProblemDetector detector;
-				if (shapeMode) {
-					detector = new ShapeProblemDetector(kprev, kres, n, props);
-				} else {
-					detector = new ProblemDetector(kprev, kres, n, props);
-				}
-				detector.detectProblem(brain, forceDetect);
-				if (detector.validProblem) {
-					// valid problem according to detector
-					if (vis.newDetection(brain, detector, fileName)) {
-						foundCount++;
-						System.out.println("found problems: " + foundCount);
-					} else {
-						System.out.println("problem not accepted");
-					}
-				}
-				// move node down to track
-				if (n != null)
-					n = n.favoriteSon();
-			}
-			
-			// slide
-			kprev = kres;
+        	results.put(turn, kres);
+
+        	for (int pair = turn; pair <= turn + 1; pair++) {
+        		KataAnalysisResult kprev = results.get(pair - 1);
+        		KataAnalysisResult knext = results.get(pair);
+        		if (kprev == null || knext == null || !pairsLeft.remove(pair))
+        			continue;
+        		check.check(pair, kprev, knext);
+        	}
+        	// an answer is needed by the pair ending at it and the pair starting from it
+        	for (int t = turn - 1; t <= turn + 1; t++) {
+        		if (results.containsKey(t) && !pairsLeft.contains(t) && !pairsLeft.contains(t + 1))
+        			results.remove(t);
+        	}
+        }
+	}
+
+	// turns already in the store come straight from disk, only the rest go to katago (and get saved)
+	private Map<Integer, CompletableFuture<KataAnalysisResult>> fetchResults(AnalysisEngine brain, KataQuery query, String sgf) throws IOException {
+		if (store == null)
+			return brain.doQuery(query);
+
+		String sgfHash = AnalysisStore.hashSgf(sgf);
+		String model = AnalysisStore.modelName(brain.getModelPath());
+		int visits = query.maxVisits;
+		Map<Integer, CompletableFuture<KataAnalysisResult>> futures = new HashMap<>();
+		var misses = new ArrayList<Integer>();
+		for (int turn: query.analyzeTurns) {
+			KataAnalysisResult kres = store.get(AnalysisStore.key(sgfHash, turn, visits, model));
+			if (kres != null)
+				futures.put(turn, CompletableFuture.completedFuture(kres));
+			else
+				misses.add(turn);
 		}
-		System.out.println("found problems: " + foundCount);
-		return foundCount;
+		System.out.println("store: " + futures.size() + " turns from disk, " + misses.size() + " to analyze");
+		if (misses.isEmpty())
+			return futures;
+
+		query.analyzeTurns = misses;
+		brain.doQuery(query).forEach((turn, future) -> futures.put(turn, future.thenApply(kres -> {
+			try {
+				store.put(AnalysisStore.key(sgfHash, turn, visits, model), kres);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return kres;
+		})));
+		return futures;
 	}
 
 	private Process versionCheck(ProcessBuilder processBuilder, String kataPath) throws IOException {
@@ -0,0 +1,293 @@
+package autoprob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * serves one katago analysis engine over tcp, so scans on other machines can share its gpu.
+ * clients connect with katago=tcp://host:port and talk the usual json lines protocol.
+ *
+ * each connection gets an id prefix ("c3:") added to its query ids on the way in and taken off
+ * the answers on the way out, so ids from different clients can't collide in katago.
+ * a client that disconnects has its unanswered queries terminated. if katago dies the clients are
+ * dropped (their brains reconnect and replay) and katago is started again.
+ *
+ * usage: KataServer config.properties [server.port=6500]
+ * katago, kata.config, kata.model etc. are read the same way KataBrain reads them.
+ */
+public class KataServer {
+	private final Properties props;
+	private final ServerSocket serverSocket;
+	private final Map<Integer, Client> clients = new ConcurrentHashMap<>();
+	private final AtomicInteger nextClient = new AtomicInteger();
+	private Process process;
+	private PrintWriter engineIn;
+	private volatile String readyLine; // katago's startup line, repeated to clients connecting later
+	private volatile boolean stopping = false;
+	private static final int ANY_TURN = -1;
+
+	private class Client {
+		final int num;
+		final String prefix;
+		final Socket socket;
+		final PrintWriter out;
+		// query id -> turns not answered yet, terminated if the client goes away.
+		// ANY_TURN stands in for the one answer to a query without analyzeTurns
+		final Map<String, Set<Integer>> outstanding = new ConcurrentHashMap<>();
+
+		Client(int num, Socket socket) throws IOException {
+			this.num = num;
+			this.prefix = "c" + num + ":";
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		synchronized void send(String line) {
+			out.println(line);
+			out.flush();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties props = ExecBase.getRunConfig(args);
+		int port = Integer.parseInt(props.getProperty("server.port", "6500"));
+		KataServer server = new KataServer(props, port);
+		server.start();
+		System.out.println("serving katago on port " + server.getPort());
+	}
+
+	public KataServer(Properties props, int port) throws IOException {
+		this.props = props;
+		serverSocket = new ServerSocket(port);
+	}
+
+	// the port listened on, useful when started on port 0
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void start() throws IOException {
+		startEngine();
+		Thread acceptor = new Thread(this::acceptClients, "kataserver accept");
+		acceptor.start();
+	}
+
+	public void stop() {
+		stopping = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (Client c: clients.values())
+			c.close();
+		synchronized (this) {
+			if (process != null)
+				process.destroy();
+		}
+	}
+
+	private synchronized void startEngine() throws IOException {
+		List<String> command = KataBrain.engineCommand(props, props.getProperty("kata.model", "").trim());
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.redirectErrorStream(true);
+		process = processBuilder.start();
+		engineIn = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+		readyLine = null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		Thread t = new Thread(() -> readEngine(reader), "kataserver engine");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private synchronized void toEngine(String line) {
+		engineIn.println(line);
+		engineIn.flush();
+	}
+
+	private void readEngine(BufferedReader reader) {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("{"))
+					routeAnswer(line);
+				else if (line.contains("ready to begin handling requests")) {
+					System.out.println(line);
+					readyLine = line;
+					for (Client c: clients.values())
+						c.send(line);
+				} else
+					System.out.println(line);
+			}
+		} catch (IOException e) {
+			if (!stopping)
+				e.printStackTrace();
+		}
+		if (stopping)
+			return;
+		// the clients' brains see the connection drop and replay what they were waiting on
+		System.out.println("katago exited, dropping " + clients.size() + " clients and restarting");
+		for (Client c: clients.values())
+			c.close();
+		try {
+			startEngine();
+		} catch (IOException e) {
+			System.out.println("couldn't restart katago: " + e);
+		}
+	}
+
+	// katago's output is compact json, so the prefix can be found and taken off without parsing the whole answer
+	private void routeAnswer(String line) {
+		int at = line.indexOf("\"id\":\"c");
+		int colon = at < 0 ? -1 : line.indexOf(':', at + 7);
+		if (colon < 0) {
+			System.out.println("kataserver: unroutable katago output " + line);
+			return;
+		}
+		String prefix = line.substring(at + 6, colon + 1);
+		Client c;
+		try {
+			c = clients.get(Integer.parseInt(prefix.substring(1, prefix.length() - 1)));
+		} catch (NumberFormatException e) {
+			System.out.println("kataserver: unroutable katago output " + line);
+			return;
+		}
+		if (c == null)
+			return; // client already gone
+		String answer = line.replace("\"id\":\"" + prefix, "\"id\":\"").replace("\"terminateId\":\"" + prefix, "\"terminateId\":\"");
+		if (!answer.contains("\"isDuringSearch\":true") && !answer.contains("\"action\"")) {
+			String id = line.substring(colon + 1, line.indexOf('"', colon + 1));
+			if (answer.contains("\"error\""))
+				c.outstanding.remove(id);
+			else
+				answered(c, id, turnNumber(line));
+		}
+		c.send(answer);
+	}
+
+	// katago may still send a final answer for a terminated turn, so taking a turn off twice is fine
+	private void answered(Client c, String id, int turn) {
+		c.outstanding.computeIfPresent(id, (k, turns) -> {
+			if (!turns.remove(turn))
+				turns.remove(ANY_TURN);
+			return turns.isEmpty() ? null : turns;
+		});
+	}
+
+	private static int turnNumber(String line) {
+		int at = line.indexOf("\"turnNumber\":");
+		if (at < 0)
+			return ANY_TURN;
+		int from = at + 13, to = from;
+		while (to < line.length() && Character.isDigit(line.charAt(to)))
+			to++;
+		return to > from ? Integer.parseInt(line.substring(from, to)) : ANY_TURN;
+	}
+
+	private void acceptClients() {
+		while (!stopping) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!stopping)
+					e.printStackTrace();
+				return;
+			}
+			try {
+				Client c = new Client(nextClient.incrementAndGet(), socket);
+				clients.put(c.num, c);
+				System.out.println("kataserver: client " + c.num + " connected from " + socket.getRemoteSocketAddress());
+				if (readyLine != null)
+					c.send(readyLine);
+				Thread t = new Thread(() -> readClient(c), "kataserver client " + c.num);
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				System.out.println("kataserver: couldn't set up client: " + e);
+			}
+		}
+	}
+
+	private void readClient(Client c) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(c.socket.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isBlank())
+					continue;
+				JsonObject q;
+				try {
+					q = JsonParser.parseString(line).getAsJsonObject();
+				} catch (Exception e) {
+					c.send("{\"error\":\"Could not parse json\"}");
+					continue;
+				}
+				String id = q.has("id") ? q.get("id").getAsString() : "";
+				q.addProperty("id", c.prefix + id);
+				if (q.has("action")) {
+					if (q.has("terminateId")) {
+						String target = q.get("terminateId").getAsString();
+						if (q.has("turnNumbers")) {
+							// only those turns stop, the rest are still coming
+							for (JsonElement t: q.getAsJsonArray("turnNumbers"))
+								answered(c, target, t.getAsInt());
+						} else {
+							c.outstanding.remove(target);
+						}
+						q.addProperty("terminateId", c.prefix + target);
+					}
+				} else {
+					Set<Integer> turns = new HashSet<>();
+					if (q.has("analyzeTurns")) {
+						for (JsonElement t: q.getAsJsonArray("analyzeTurns"))
+							turns.add(t.getAsInt());
+					}
+					if (turns.isEmpty())
+						turns.add(ANY_TURN);
+					c.outstanding.put(id, turns);
+				}
+				toEngine(q.toString());
+			}
+		} catch (IOException e) {
+			// client dropped
+		} finally {
+			clients.remove(c.num);
+			c.close();
+			// nobody is left to read these
+			for (String id: c.outstanding.keySet()) {
+				JsonObject terminate = new JsonObject();
+				terminate.addProperty("id", c.prefix + "stop:" + id);
+				terminate.addProperty("action", "terminate");
+				terminate.addProperty("terminateId", c.prefix + id);
+				toEngine(terminate.toString());
+			}
+			System.out.println("kataserver: client " + c.num + " disconnected" + (c.outstanding.isEmpty() ? "" : ", terminated " + c.outstanding.size() + " queries"));
+		}
+	}
+}
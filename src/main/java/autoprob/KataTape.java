@@ -0,0 +1,203 @@
+package autoprob;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * gzipped, append-only log of everything sent to and received from katago, so a scan or path creation
+ * can be replayed later without the engine, at the speed it originally ran.
+ *
+ * one line per record: "Q", "R" or "S", a tab, ms since the session started, a tab, then the raw line.
+ * Q is a query or action sent, R a json line katago printed, S starts a session (one per run).
+ * each run appends its own gzip member; GZIPInputStream reads them back as one stream.
+ */
+public class KataTape {
+	private static final int FLUSH_EVERY = 500; // records, a crash loses at most this many
+
+	private final Writer out;
+	private final long start = System.currentTimeMillis();
+	private long records = 0;
+	private boolean closed = false;
+
+	public KataTape(String path) throws IOException {
+		out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(path, true), 1 << 16, true), StandardCharsets.UTF_8);
+		write('S', String.valueOf(start));
+		// most runs never stop the brain, they just exit
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "katatape close"));
+		System.out.println("recording katago traffic to " + path);
+	}
+
+	public void query(String json) {
+		write('Q', json);
+	}
+
+	public void response(String line) {
+		write('R', line);
+	}
+
+	private synchronized void write(char type, String line) {
+		if (closed)
+			return;
+		try {
+			out.write(type + "\t" + (System.currentTimeMillis() - start) + "\t" + line + "\n");
+			if (++records % FLUSH_EVERY == 0)
+				out.flush();
+		} catch (IOException e) {
+			System.out.println("katago tape write failed, no longer recording: " + e);
+			closed = true;
+		}
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// one recorded query and what katago said back, by turn. times are ms after the query was sent.
+	public static class Recording {
+		public final String id;
+		public final String contentKey;
+		public final Map<Integer, List<TimedLine>> turns = new HashMap<>();
+
+		Recording(String id, String contentKey) {
+			this.id = id;
+			this.contentKey = contentKey;
+		}
+	}
+
+	public static class TimedLine {
+		public final long offset;
+		public final String line;
+
+		TimedLine(long offset, String line) {
+			this.offset = offset;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * a tape read back for replay. queries are found by id, preferring one with the same content.
+	 * ids made up at random (like NodeAnalyzer's) don't repeat between runs, so the fallback is
+	 * a query with the same content under any id.
+	 */
+	public static class Replay {
+		private final Map<String, List<Recording>> byId = new HashMap<>();
+		private final Map<String, List<Recording>> byContent = new HashMap<>();
+		private final Map<String, Integer> nextUse = new HashMap<>(); // repeated identical queries take turns
+		public int queries = 0, responses = 0;
+
+		public Replay(String path) throws IOException {
+			Map<String, Recording> current = new HashMap<>(); // latest query sent under each id
+			Map<String, Long> sentAt = new HashMap<>();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(path)), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int t1 = line.indexOf('\t');
+					int t2 = line.indexOf('\t', t1 + 1);
+					if (t1 != 1 || t2 < 0)
+						continue;
+					char type = line.charAt(0);
+					long ms = Long.parseLong(line.substring(t1 + 1, t2));
+					String body = line.substring(t2 + 1);
+					if (type == 'S') {
+						current.clear(); // ids from an earlier run mean nothing now
+						sentAt.clear();
+					} else if (type == 'Q') {
+						JsonObject q = JsonParser.parseString(body).getAsJsonObject();
+						if (q.has("action"))
+							continue;
+						String id = q.get("id").getAsString();
+						Recording rec = new Recording(id, contentKey(q));
+						current.put(id, rec);
+						sentAt.put(id, ms);
+						byId.computeIfAbsent(id, k -> new ArrayList<>()).add(rec);
+						byContent.computeIfAbsent(rec.contentKey, k -> new ArrayList<>()).add(rec);
+						queries++;
+					} else if (type == 'R' && body.startsWith("{") && !body.contains("\"action\"")) {
+						JsonObject res = JsonParser.parseString(body).getAsJsonObject();
+						if (!res.has("id") || !res.has("turnNumber"))
+							continue;
+						String id = res.get("id").getAsString();
+						Recording rec = current.get(id);
+						if (rec == null)
+							continue;
+						rec.turns.computeIfAbsent(res.get("turnNumber").getAsInt(), k -> new ArrayList<>())
+								.add(new TimedLine(ms - sentAt.get(id), body));
+						responses++;
+					}
+				}
+			} catch (EOFException e) {
+				System.err.println("katago tape " + path + " ends mid record, using what was read");
+			}
+		}
+
+		// the recording answering this query, or null
+		public synchronized Recording find(JsonObject query) {
+			String id = query.get("id").getAsString();
+			String content = contentKey(query);
+			List<Recording> sameId = byId.get(id);
+			if (sameId != null) {
+				List<Recording> both = new ArrayList<>();
+				for (Recording r: sameId) {
+					if (r.contentKey.equals(content))
+						both.add(r);
+				}
+				if (!both.isEmpty())
+					return take(id + "\n" + content, both);
+			}
+			List<Recording> sameContent = byContent.get(content);
+			if (sameContent != null)
+				return take(content, sameContent);
+			// same id, different turns asked for, like a query replayed after a crash
+			return sameId == null ? null : sameId.get(sameId.size() - 1);
+		}
+
+		private Recording take(String key, List<Recording> recs) {
+			int i = nextUse.getOrDefault(key, 0);
+			nextUse.put(key, i + 1);
+			return recs.get(Math.min(i, recs.size() - 1));
+		}
+	}
+
+	// a query minus the things that don't change the answer
+	static String contentKey(JsonObject query) {
+		JsonObject q = query.deepCopy();
+		q.remove("id");
+		q.remove("priority");
+		q.remove("reportDuringSearchEvery");
+		return q.toString();
+	}
+
+	// a recorded response line, relabelled for the id it now answers
+	public static String withId(String line, String id) {
+		JsonObject res = JsonParser.parseString(line).getAsJsonObject();
+		JsonElement old = res.get("id");
+		if (old != null && old.getAsString().equals(id))
+			return line;
+		res.addProperty("id", id);
+		return res.toString();
+	}
+}
@@ -4,6 +4,7 @@ import java.awt.Point;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 import autoprob.go.Board;
 import com.google.gson.Gson;
@@ -14,26 +15,70 @@ import autoprob.go.action.MoveAction;
 import autoprob.katastruct.AllowMove;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.KataQuery;
+import autoprob.katastruct.QueryCaller;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
+import autoprob.katastruct.StabilityCheck;
 
 public class NodeAnalyzer {
 	private boolean debugOwnership = false;
 	private final Properties props;
+	private QueryPriority priority = QueryPriority.SCAN;
+	private StabilityCheck stopWhen = null; // stop searching once this says the answer has settled
+	private Object owner = null; // queries are sent on behalf of this, see KataBrain.cancel
+	private QueryCaller caller = QueryCaller.DETECTOR;
+	private QueryProfile profile = QueryProfile.FULL;
+	private final boolean historyQueries; // send the moves from the top of the tree instead of the mom's board
 	private static final DecimalFormat df = new DecimalFormat("0.00");
 
 	public NodeAnalyzer(Properties props) {
-		this.props = props;
+		this(props, false);
 	}
 
 	public NodeAnalyzer(Properties props, boolean debugOwnership) {
 		this.debugOwnership  = debugOwnership;
 		this.props = props;
+		historyQueries = Boolean.parseBoolean(props.getProperty("kata.history_queries", "false"));
+	}
+
+	// scheduling class for the queries this analyzer sends
+	public void setPriority(QueryPriority priority) {
+		this.priority = priority;
+	}
+
+	// opt in to early stopping, null runs every query to its full visits
+	public void setStopWhen(StabilityCheck stopWhen) {
+		this.stopWhen = stopWhen;
+	}
+
+	public void setOwner(Object owner) {
+		this.owner = owner;
 	}
 
-	public KataAnalysisResult analyzeNode(KataBrain brain, Node node, int visits, ArrayList<String> moves) throws Exception {
+	// the arrays katago sends back, narrow it to what the caller reads
+	public void setProfile(QueryProfile profile) {
+		this.profile = profile;
+	}
+
+	// who the queries are for, in the brain's metrics
+	public void setCaller(QueryCaller caller) {
+		this.caller = caller;
+	}
+
+	public KataAnalysisResult analyzeNode(AnalysisEngine brain, Node node, int visits, ArrayList<String> moves) throws Exception {
 		return analyzeNode(brain, node, visits, moves, "10k");
 	}
 
-	public KataAnalysisResult analyzeNode(KataBrain brain, Node node, int visits, ArrayList<String> moves, String humanSLrank) throws Exception {
+	public KataAnalysisResult analyzeNode(AnalysisEngine brain, Node node, int visits, ArrayList<String> moves, String humanSLrank) throws Exception {
+		return analyzeNodeAsync(brain, node, visits, moves, humanSLrank).join();
+	}
+
+	public CompletableFuture<KataAnalysisResult> analyzeNodeAsync(AnalysisEngine brain, Node node, int visits, ArrayList<String> moves) {
+		return analyzeNodeAsync(brain, node, visits, moves, "10k");
+	}
+
+	// sends the query and returns right away, so callers can have several positions in flight at once
+	public CompletableFuture<KataAnalysisResult> analyzeNodeAsync(AnalysisEngine brain, Node node, int visits, ArrayList<String> moves, String humanSLrank) {
 		Gson gson = new Gson();
 
 		QueryBuilder qb = new QueryBuilder();
@@ -44,14 +89,20 @@ public class NodeAnalyzer {
 			query = qb.buildQuery(node);
 			query.analyzeTurns = new ArrayList<>();
 			query.analyzeTurns.add(0); // 0 is the initial position, all we do here
+		} else if (historyQueries) {
+			query = qb.buildQueryFromHistory(node);
 		} else {
 			query = qb.buildQueryFromMom(node);
 		}
 		
 		query.id = "keng" + node.depth + "_" + Math.random();
 		query.maxVisits = visits;
-		query.includePolicy = true;
+		query.setProfile(profile);
 		query.setHumanSLrank(humanSLrank); // default rank
+		query.setPriority(priority);
+		query.stopWhen = stopWhen;
+		query.owner = owner;
+		query.caller = caller;
 		// required moves set?
 		if (moves != null && moves.size() > 0) {
 			var am = new AllowMove();
@@ -73,21 +124,38 @@ public class NodeAnalyzer {
 		if (dbgNal)
 			System.out.println("NAL query (" + lm + ") moves: " + query.moves.size() + ", visits: " + query.maxVisits + ", query: " + qjson);
 		
-		brain.doQuery(query);
-		KataAnalysisResult kres = brain.getResult(query.id, query.analyzeTurns.get(0));
-
-		if (dbgNal)
-			System.out.println("> NAL parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead) + ", for " + kres.rootInfo.currentPlayer);
-				
-		if (debugOwnership) {
-			System.out.println("Ownership after move " + lm + " depth: " + node.depth + ":");
-			kres.drawOwnership(node);
-			kres.drawNumericalOwnership(node);
+		// same position with the same settings already analyzed deeply enough?
+		String cacheKey = null;
+		AnalysisCache cache = brain.getCache();
+		if (cache.isEnabled()) {
+			cacheKey = cache.key(node, query);
+			KataAnalysisResult cached = cache.lookup(cacheKey, query);
+			if (cached != null) {
+				if (dbgNal)
+					System.out.println("> NAL cache hit (" + lm + ")");
+				return CompletableFuture.completedFuture(cached);
+			}
 		}
-		
-		//TODO if no moves come back, try without move restriction. should this really be possible though? i think not. probably a bug we needed it before.
-				
-		return kres;
+
+		var future = brain.doQuery(query).get(query.analyzeTurns.get(0));
+		final String key = cacheKey;
+		final String lastMove = lm;
+		return future.thenApply(kres -> {
+			if (key != null)
+				cache.store(key, query, kres);
+			if (dbgNal)
+				System.out.println("> NAL parsed: " + kres.id + ", turn: " + kres.turnNumber + ", score: " + df.format(kres.rootInfo.scoreLead) + ", for " + kres.rootInfo.currentPlayer);
+
+			if (debugOwnership) {
+				System.out.println("Ownership after move " + lastMove + " depth: " + node.depth + ":");
+				kres.drawOwnership(node);
+				kres.drawNumericalOwnership(node);
+			}
+
+			//TODO if no moves come back, try without move restriction. should this really be possible though? i think not. probably a bug we needed it before.
+
+			return kres;
+		});
 		
 //		if (moves != null && moves.size() > 0) {
 //			// try again without moves
@@ -95,13 +163,17 @@ public class NodeAnalyzer {
 //		}
 	}
 
-	public KataAnalysisResult analyzeNode(KataBrain brain, Node node, int visits) throws Exception {
+	public KataAnalysisResult analyzeNode(AnalysisEngine brain, Node node, int visits) throws Exception {
 		return analyzeNode(brain, node, visits, null);
 	}
 
-	public KataAnalysisResult analyzeNode(KataBrain brain, Node node, int visits, double dist, boolean useDistance, Board ignoreStones) throws Exception {
+	public KataAnalysisResult analyzeNode(AnalysisEngine brain, Node node, int visits, double dist, boolean useDistance, Board ignoreStones) throws Exception {
+		return analyzeNodeAsync(brain, node, visits, dist, useDistance, ignoreStones).join();
+	}
+
+	public CompletableFuture<KataAnalysisResult> analyzeNodeAsync(AnalysisEngine brain, Node node, int visits, double dist, boolean useDistance, Board ignoreStones) {
 		if (!useDistance) {
-			return analyzeNode(brain, node, visits, null);
+			return analyzeNodeAsync(brain, node, visits, null);
 		}
 		ArrayList<String> moves = new ArrayList<>();
 		// look for locs within dist of a stone
@@ -125,7 +197,7 @@ public class NodeAnalyzer {
 					moves.add(Intersection.toGTPloc(x, y, 19));
 				}
 			}
-		return analyzeNode(brain, node, visits, moves);
+		return analyzeNodeAsync(brain, node, visits, moves);
 	}
 
 }
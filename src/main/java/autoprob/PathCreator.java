@@ -5,27 +5,33 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 import autoprob.go.*;
 import autoprob.go.action.MoveAction;
 import autoprob.go.vis.BasicGoban;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.QueryCaller;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.StabilityCheck;
 
 // creates solution and refutation paths given a problem
 public class PathCreator {
     protected static final DecimalFormat df = new DecimalFormat("0.00");
 	protected final boolean debugOwnership;
-	protected final KataBrain brain;
+	protected final AnalysisEngine brain;
 	protected final int ignoreResponseVisitsDepth; // normally we do responses if they get enough visits, even if the policy is low but setting this will cap it out -- otherwise variations go almost forever
-	protected boolean abortNow = false;
+	protected volatile boolean abortNow = false;
 	protected BasicGoban probGoban;
 	protected GenOptions gopts;
 	protected NodeChangeListener ncl;
 
-	// signal to stop exploring new things, exit gracefully
+	// signal to stop exploring new things, exit gracefully. whatever katago is still working on for us is cancelled.
 	public void abortPathCreation() {
 		abortNow = true;
+		brain.cancel(this);
     }
 
     // generation options
@@ -64,7 +70,7 @@ public class PathCreator {
 	protected final Properties props;
 	protected int[] minPolicies;
 
-	public PathCreator(ProblemDetector det, Properties props, KataBrain brain) {
+	public PathCreator(ProblemDetector det, Properties props, AnalysisEngine brain) {
 		this.det = det;
 		this.props = props;
 		this.brain = brain;
@@ -418,7 +424,7 @@ public class PathCreator {
 
 		int visits = gopts.pathsVisits;
 		if (depth == 0) visits = Integer.parseInt(props.getProperty("paths.visits_root"));
-		var na = new NodeAnalyzer(props, debugOwnership);
+		var na = newAnalyzer(debugOwnership);
 		KataAnalysisResult kar = na.analyzeNode(brain, node, visits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
 		node.kres = kar; // save for debugging
 		System.out.println();
@@ -471,7 +477,8 @@ public class PathCreator {
 		String mv = Intersection.toGTPloc(p.x, p.y);
 		if (!isAllowedRootMove(mv)) return false;
 		Node tike = node.addBasicMove(p.x, p.y);
-		var na = new NodeAnalyzer(props);
+		var na = newAnalyzer(false);
+		na.setStopWhen(StabilityCheck.fromProps(props)); // only ownership is used from this one
 		int visits = Integer.parseInt(props.getProperty("paths.visits_root"));
 		KataAnalysisResult karMove = na.analyzeNode(brain, tike, visits);
 
@@ -560,7 +567,7 @@ public class PathCreator {
 	protected KataAnalysisResult calcMoveAnalysis(Node node, Point p, GenOptions gopts) throws Exception {
 		// first put this move down and measure it directly (existing KAR may have few visits)
 		Node tike = node.addBasicMove(p.x, p.y);
-		var na = new NodeAnalyzer(props, debugOwnership);
+		var na = newAnalyzer(debugOwnership);
 		int visits = gopts.pathsVisits;
 		KataAnalysisResult karMove = na.analyzeNode(brain, tike, visits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
 
@@ -577,7 +584,7 @@ public class PathCreator {
 		// look at original ownership change stones, see how they differ after this move
 		int delta = 0;
 		for (Point op: det.ownershipChanges) {
-			double od = kar.ownership.get(op.x + op.y * 19) - karMove.ownership.get(op.x + op.y * 19);
+			double od = kar.getOwnership()[op.x + op.y * 19] - karMove.getOwnership()[op.x + op.y * 19];
 			if (debugOwnership) {
 				String mv = Intersection.toGTPloc(op.x, op.y);
 				System.out.println("    stone " + mv + " : " + df.format(od));
@@ -600,12 +607,14 @@ public class PathCreator {
 		System.out.println("starting pass value calculation, base visits: " + baseVisits + ", pass visits: " + passVisits);
 		// first put this move down and measure it directly (existing KAR may have few visits)
 		Node tike = node.addBasicMove(p.x, p.y);
-		var na = new NodeAnalyzer(props, debugOwnership);
-		KataAnalysisResult karMove = na.analyzeNode(brain, tike, baseVisits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
-
 		Node passNode = tike.addBasicMove(19, 19);
-		KataAnalysisResult karPass = na.analyzeNode(brain, passNode, passVisits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
-		
+		var na = newAnalyzer(debugOwnership);
+		// the two positions don't depend on each other, so let katago work on both at once
+		var moveFuture = na.analyzeNodeAsync(brain, tike, baseVisits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
+		var passFuture = na.analyzeNodeAsync(brain, passNode, passVisits, gopts.considerNearDist, gopts.onlyConsiderNear, det.filledStones);
+		KataAnalysisResult karMove = moveFuture.join();
+		KataAnalysisResult karPass = passFuture.join();
+
 		int delta = stoneDelta(karMove, karPass, tike);
 		System.out.println("  Pass delta stones: " + delta + ", " + tike.printPath2Here());
 
@@ -630,13 +639,13 @@ public class PathCreator {
 		double maxDelta = 0;
 		for (int x = 0; x < 19; x++)
 			for (int y = 0; y < 19; y++) {
-				double od = k1.ownership.get(x + y * 19) - k2.ownership.get(x + y * 19);
+				double od = k1.getOwnership()[x + y * 19] - k2.getOwnership()[x + y * 19];
 				int stn = childNode.board.board[x][y].stone;
 				if (stn == 0) continue;
 				maxDelta = Math.max(maxDelta, Math.abs(od));
 				if (Math.abs(od) > OWNERSHIP_THRESHOLD) {
 //					System.out.println("own delta: " + df.format(od) + ", " + Intersection.toGTPloc(x, y, 19) +
-//							" (" + df.format(prev.ownership.get(x + y * 19)) + " -> " + df.format(kar.ownership.get(x + y * 19)) + ")");
+//							" (" + df.format(prev.ownership[x + y * 19]) + " -> " + df.format(kar.ownership[x + y * 19]) + ")");
 					cnt++;
 				}
 			}
@@ -657,6 +666,15 @@ public class PathCreator {
 		return d;
 	}
 
+	// path queries go ahead of any scan running on the same brain
+	private NodeAnalyzer newAnalyzer(boolean dbgOwnership) {
+		var na = new NodeAnalyzer(props, dbgOwnership);
+		na.setPriority(QueryPriority.PATHS);
+		na.setOwner(this);
+		na.setCaller(QueryCaller.PATH);
+		return na;
+	}
+
 	// create problem branches
 	public void makePaths(Node problem, BasicGoban probGoban, GenOptions gopts, NodeChangeListener ncl) throws Exception {
 		this.probGoban = probGoban;
@@ -670,8 +688,17 @@ public class PathCreator {
 		}
 		System.out.println();
 		
-		genPathRecurse(problem, 0, true);
+		try {
+			genPathRecurse(problem, 0, true);
+		} catch (CancellationException | CompletionException e) {
+			if (!abortNow)
+				throw e;
+			System.out.println("path creation aborted");
+		}
 
 		problem.markCrayons();
+		System.out.println(brain.getCache().summary());
+		System.out.println(brain.getQueueWaitSummary());
+		System.out.println(brain.getEarlyStopSummary());
 	}
 }
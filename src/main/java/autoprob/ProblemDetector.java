@@ -3,6 +3,7 @@ package autoprob;
 import java.awt.Point;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import autoprob.go.Board;
@@ -12,6 +13,9 @@ import autoprob.go.StoneConnect;
 import autoprob.go.action.TriangleAction;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
+import autoprob.katastruct.StabilityCheck;
 
 public class ProblemDetector {
     protected static final DecimalFormat df = new DecimalFormat("0.00");
@@ -47,6 +51,11 @@ public class ProblemDetector {
 	
 	Node problem;
 
+	// the extracted problem position, null until a problem is detected
+	public Node getProblem() {
+		return problem;
+	}
+
 	public KataAnalysisResult karPass;
 
 	// prev is the problem position. kar is the mistake position. node represents prev.
@@ -66,7 +75,7 @@ public class ProblemDetector {
 		validProblem = false;
 	}
 
-	public void detectProblem(KataBrain brain, boolean forceDetect) throws Exception {
+	public void detectProblem(AnalysisEngine brain, boolean forceDetect) throws Exception {
         Node child = node.favoriteSon();
         Point nextMove = child.findMove();
         if (nextMove.x == 19) return;
@@ -144,6 +153,30 @@ public class ProblemDetector {
 		System.out.println("running deeper problem search analysis with #visits: " + visits);
 		boolean dbgOwn = Boolean.parseBoolean(props.getProperty("search.debug_pass_ownership", "false"));
 		var na = new NodeAnalyzer(props, dbgOwn);
+		na.setPriority(QueryPriority.DETECT); // ahead of the other games' scan queries
+		na.setStopWhen(StabilityCheck.fromProps(props)); // only ownership is used from these
+		na.setProfile(QueryProfile.OWNERSHIP);
+
+		// cheaper looks first, most candidates don't survive them
+		ConfirmStages stages = new ConfirmStages(props, visits);
+		for (int stage = 0; stage < stages.size(); stage++) {
+			int stageVisits = stages.visits(stage);
+			System.out.println("confirming with #visits: " + stageVisits);
+			var karStage = na.analyzeNode(brain, node, stageVisits);
+			Node stagePass = node.addBasicMove(19, 19);
+			var karStagePass = na.analyzeNode(brain, stagePass, stageVisits);
+			node.removeChildNode(stagePass);
+			String reject = recheck(karStage, karStagePass, stageVisits);
+			if (reject == null) {
+				stages.passed(stage);
+				continue;
+			}
+			System.out.println("  rejected at " + stageVisits + " visits: " + reject);
+			stages.rejected(stage, 2);
+			if (!forceDetect) return;
+		}
+		stages.survived(2);
+
 		// first the root node, the position before the mistake
 		var karDeep = na.analyzeNode(brain, node, visits);
 
@@ -181,6 +214,71 @@ public class ProblemDetector {
 		makeProblem();
 	}
 
+	// the cheap checks again, on a deeper look at the position and at passing there. null if it still looks good.
+	// only decides, what gets reported still comes from the game analysis and the final deep one.
+	// the stage queries stop once ownership settles, and then have too few visits to judge solutions by
+	protected String recheck(KataAnalysisResult kar, KataAnalysisResult karPass, int visits) {
+		int changed = countOwnershipChanges(karPass, kar);
+		if (changed < DETECT_OWNERSHIP_STONES)
+			return "low ownership change: " + changed;
+		if (kar.rootInfo.visits == null || kar.rootInfo.visits < visits)
+			return null;
+		List<MoveInfo> stageSols = solutions(kar);
+		if (stageSols.size() > DETECT_MAX_SOLUTIONS)
+			return "too many sols: " + stageSols.size();
+		double prior = 0;
+		for (MoveInfo mi: stageSols) {
+			if (node.board.isKoShape(Intersection.gtp2point(mi.move)))
+				return "sol was ko: " + mi.move;
+			prior = Math.max(prior, mi.prior);
+		}
+		if (prior > MAX_POLICY)
+			return "too high policy: " + prior;
+		return null;
+	}
+
+	// stoneDelta's count, without touching the detector's fields
+	private int countOwnershipChanges(KataAnalysisResult kar, KataAnalysisResult prev) {
+		double threshold = Double.parseDouble(props.getProperty("search.ownership_threshold"));
+		int count = 0;
+		for (int x = 0; x < 19; x++)
+			for (int y = 0; y < 19; y++) {
+				if (node.board.board[x][y].stone == 0) continue;
+				if (Math.abs(kar.getOwnership()[x + y * 19] - prev.getOwnership()[x + y * 19]) > threshold)
+					count++;
+			}
+		return count;
+	}
+
+	// the first pass of a two-pass scan (search.prefilter_visits): the cheap checks on a low visit look, loosened
+	// by the search.prefilter_* slack since a quick search misjudges ownership and solutions. no katago calls.
+	// true if the pair is worth analyzing again at search.visits
+	public boolean passesPrefilter() {
+		Point nextMove = node.favoriteSon().findMove();
+		if (nextMove.x == 19) return false;
+
+		double stoneSlack = Double.parseDouble(props.getProperty("search.prefilter.stone_slack", "0.5"));
+		stoneDelta(mistake, node, prev);
+		if (totDelta < DETECT_OWNERSHIP_STONES * stoneSlack)
+			return false;
+
+		// the board checks are exact, no need to wait for the full search
+		Point lastMove = node.findMove();
+		if (lastMove != null && lastMove.x != 19 && node.mom.board.isKoShape(lastMove)
+				&& Boolean.parseBoolean(props.getProperty("search.no_last_ko_move")))
+			return false;
+		if (node.board.isKoShape(nextMove))
+			return false;
+
+		int extraSolutions = Integer.parseInt(props.getProperty("search.prefilter.extra_solutions", "1"));
+		numSols = countSolutions(prev);
+		if (numSols > DETECT_MAX_SOLUTIONS + extraSolutions)
+			return false;
+
+		double policySlack = Double.parseDouble(props.getProperty("search.prefilter.policy_slack", "0.1"));
+		return highestPrior <= MAX_POLICY + policySlack;
+	}
+
 	// for testing
 	public ProblemDetector(KataAnalysisResult prev, KataAnalysisResult mistake, Node n, Properties props, boolean b) {
 		this.mistake = mistake;
@@ -198,7 +296,7 @@ public class ProblemDetector {
 
 		// loop over just stones
 		for (Point p: ownershipChanges) {
-			double aliveness = kar.ownership.get(p.x + p.y * 19);
+			double aliveness = kar.getOwnership()[p.x + p.y * 19];
 			// debug print
 			System.out.println("  aliveness: " + aliveness + " at " + Intersection.toGTPloc(p.x, p.y));
 			if (Math.abs(aliveness) < minAliveThreshold) {
@@ -330,13 +428,13 @@ public class ProblemDetector {
 
 		for (int x = 0; x < 19; x++)
 			for (int y = 0; y < 19; y++) {
-				double od = kar.ownership.get(x + y * 19) - prev.ownership.get(x + y * 19);
+				double od = kar.getOwnership()[x + y * 19] - prev.getOwnership()[x + y * 19];
 				int stn = node.board.board[x][y].stone;
 				if (stn == 0) continue;
 				maxDelta = Math.max(maxDelta, Math.abs(od));
 				if (Math.abs(od) > threshold) {
 					System.out.println("own delta: " + df.format(od) + ", " + Intersection.toGTPloc(x, y, 19) +
-							" (" + df.format(prev.ownership.get(x + y * 19)) + " -> " + df.format(kar.ownership.get(x + y * 19)) + ")");
+							" (" + df.format(prev.getOwnership()[x + y * 19]) + " -> " + df.format(kar.getOwnership()[x + y * 19]) + ")");
 					if (stn == Intersection.BLACK)
 						ownDeltaB++;
 					else
@@ -366,7 +464,7 @@ public class ProblemDetector {
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				// calculate the ownership delta
-				double od = kar.ownership.get(x + y * 19) - prev.ownership.get(x + y * 19);
+				double od = kar.getOwnership()[x + y * 19] - prev.getOwnership()[x + y * 19];
 
 				if (dbg) {
 					// print a board representing ownership delta
@@ -390,7 +488,7 @@ public class ProblemDetector {
 //				if (stn != 0) continue;
 				if (Math.abs(od) > EMPTY_OWNERSHIP_THRESHOLD) {
 //					System.out.println("full own delta: " + df.format(od) + ", " + Intersection.toGTPloc(x, y, 19) +
-//							" (" + df.format(prev.ownership.get(x + y * 19)) + " -> " + df.format(kar.ownership.get(x + y * 19)) + ")");
+//							" (" + df.format(prev.ownership[x + y * 19]) + " -> " + df.format(kar.ownership[x + y * 19]) + ")");
 					fullOwnershipChanges.add(new Point(x, y));
 				}
 			}
@@ -409,24 +507,33 @@ public class ProblemDetector {
 	// how many moves lead to a solution?
 	//TODO convert to life/death instead
 	protected int countSolutions(KataAnalysisResult kar) {
-		double baseline = kar.rootInfo.scoreLead;
 		int count = 0;
 		solString = "";
+		for (MoveInfo mi: solutions(kar)) {
+			count++; // close enough
+			System.out.println("sol: " + mi.move);
+			if (solString.length() > 0)
+				solString = solString + ", ";
+			solString = solString + mi.move;
+			sols.add(mi.move);
+			highestPrior = Math.max(highestPrior, mi.prior);
+		}
+		return count;
+	}
+
+	// moves scoring close to the best, that got enough visits to count
+	protected List<MoveInfo> solutions(KataAnalysisResult kar) {
+		double baseline = kar.rootInfo.scoreLead;
+		List<MoveInfo> found = new ArrayList<>();
 		for (MoveInfo mi: kar.moveInfos) {
 			double score = mi.scoreLead;
 			if (Math.abs(baseline - score) < EXTRA_SOLUTION_THRESHOLD) {
 				if (mi.visits < (int)(MIN_SOL_VISIT_RATIO * kar.rootInfo.visits))
 					continue; // too obscure
-				count++; // close enough
-				System.out.println("sol: " + mi.move);
-				if (solString.length() > 0)
-					solString = solString + ", ";
-				solString = solString + mi.move;
-				sols.add(mi.move);
-				highestPrior = Math.max(highestPrior, mi.prior);
+				found.add(mi);
 			}
 		}
-		return count;
+		return found;
 	}
 
 	public String getFileNameExtras() {
@@ -3,12 +3,14 @@ package autoprob;
 import java.awt.Point;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 
 import autoprob.go.Board;
 import autoprob.go.Intersection;
 import autoprob.go.Node;
 import autoprob.go.action.MoveAction;
 import autoprob.katastruct.KataQuery;
+import autoprob.katastruct.QueryProfile;
 /*
 {
     "id": "foo",
@@ -33,9 +35,8 @@ public class QueryBuilder {
 	// assumes no branching!
 	public KataQuery buildQuery(Node node) {
 		var kq = new KataQuery();
-		kq.includeOwnership = true;
+		kq.setProfile(QueryProfile.FULL); // callers narrow this to what they read
 		kq.includeMovesOwnership = false;
-		kq.includeOwnershipStdev = true;
 		int toMove = node.getToMove();
 		kq.initialPlayer = Intersection.color2katagoname(toMove);
 
@@ -79,12 +80,79 @@ public class QueryBuilder {
 		return kq;
 	}
 	
+	// the setup at the top of node's line once, then the moves that led to node. katago sees the real
+	// history (so ko and superko are right) and related positions share a prefix it can reuse.
+	// a node whose board isn't just its mom's plus its move (stones edited in, say) starts the line.
+	public KataQuery buildQueryFromHistory(Node node) {
+		ArrayList<Node> line = new ArrayList<>();
+		Node root = node;
+		while (root.mom != null && followsFromMom(root)) {
+			line.add(root);
+			root = root.mom;
+		}
+		Collections.reverse(line);
+
+		var kq = new KataQuery();
+		kq.setProfile(QueryProfile.FULL); // callers narrow this to what they read
+		kq.includeMovesOwnership = false;
+		kq.initialPlayer = Intersection.color2katagoname(root.getToMove());
+
+		// initial stones
+		kq.initialStones = new ArrayList<>();
+		Board b = root.board;
+        for (int i = 0; i < 19; i++)
+            for (int j = 0; j < 19; j++) {
+                Intersection insec = b.board[i][j];
+                if (insec.stone == Intersection.BLACK) {
+                	kq.initialStones.add(Arrays.asList("B", Intersection.toGTPloc(i, j, b.boardY)));
+                }
+                else if (insec.stone == Intersection.WHITE) {
+                	kq.initialStones.add(Arrays.asList("W", Intersection.toGTPloc(i, j, b.boardY)));
+                }
+            }
+
+        // moves
+		kq.moves = new ArrayList<>();
+		for (Node n: line) {
+			MoveAction moveAction = n.getMoveAction();
+			Point loc = moveAction.loc;
+			kq.moves.add(Arrays.asList(moveAction.stone == Intersection.BLACK ? "B" : "W", Intersection.toGTPloc(loc.x, loc.y, b.boardY)));
+		}
+		kq.analyzeTurns = new ArrayList<>();
+		kq.analyzeTurns.add(kq.moves.size()); // just the last position
+		return kq;
+	}
+
+	// is node's board what playing its move on mom's board gives? only the move and captures may differ
+	private boolean followsFromMom(Node node) {
+		MoveAction moveAction = node.getMoveAction();
+		if (moveAction == null || moveAction.loc.x < 0)
+			return false;
+		Point loc = moveAction.loc;
+		int color = moveAction.stone;
+		int opp = color == Intersection.BLACK ? Intersection.WHITE : Intersection.BLACK;
+		Board before = node.mom.board;
+		Board after = node.board;
+		for (int i = 0; i < 19; i++)
+			for (int j = 0; j < 19; j++) {
+				int was = before.board[i][j].stone;
+				int is = after.board[i][j].stone;
+				if (was == is)
+					continue;
+				if (i == loc.x && j == loc.y && was == Intersection.EMPTY && is == color)
+					continue;
+				if (was == opp && is == Intersection.EMPTY)
+					continue; // captured
+				return false;
+			}
+		return true;
+	}
+
 	// add single move from mom to us
 	public KataQuery buildQueryFromMom(Node node) {
 		var kq = new KataQuery();
-		kq.includeOwnership = true;
+		kq.setProfile(QueryProfile.FULL); // callers narrow this to what they read
 		kq.includeMovesOwnership = false;
-		kq.includeOwnershipStdev = true;
 		Node mom = node.mom;
 		int toMove = mom.getToMove();
 		kq.initialPlayer = Intersection.color2katagoname(toMove);
@@ -0,0 +1,35 @@
+package autoprob;
+
+// one turn of one query, the unit katago answers in. ids are free text, so gluing the turn on
+// as a string can make two different turns the same key ("x1" turn 1 and "x" turn 11).
+public final class ResultKey {
+	public final String id;
+	public final int turn;
+	private final int hash;
+
+	public ResultKey(String id, int turn) {
+		this.id = id;
+		this.turn = turn;
+		this.hash = id.hashCode() * 31 + turn;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof ResultKey))
+			return false;
+		ResultKey k = (ResultKey) o;
+		return turn == k.turn && id.equals(k.id);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return id + ", turn " + turn;
+	}
+}
@@ -0,0 +1,301 @@
+package autoprob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * append-only record of a directory scan, kept in the scanned directory as zjournal. a scan reads it
+ * on start and then skips what's done with a map lookup per file, whatever order the files are listed in.
+ *
+ * one tab separated line per event: time, session, status, file, sgf hash, size, modified, ms, detail.
+ * the file is its path relative to the scanned directory, with / between the parts.
+ * statuses are queued, analysed (katago answered the scan query), problem (one per problem handed out,
+ * detail is the turn), detected (finished, detail is the problem count), failed and dropped (stopped early).
+ * a file counts as done once it is detected or failed with the same content. renamed or copied games are
+ * recognized by hash, a file with the same name but new content is scanned again.
+ *
+ * several scanners can share a directory. appends hold a lock on the file and first read whatever the
+ * others added. each scanner also holds a lock on a byte of its own far past the end of the file for as
+ * long as it runs, so a file queued by a session whose lock can be taken belongs to a scan that died.
+ */
+public class ScanJournal {
+	public static final String FILE_NAME = "zjournal";
+	private static final long SESSION_LOCKS = 1L << 62; // session locks live out here, appends lock below
+	private static final int QUEUED = 0, ANALYSED = 1, PROBLEM = 2, DETECTED = 3, FAILED = 4, DROPPED = 5;
+	private static final String[] STATUS = {"queued", "analysed", "problem", "detected", "failed", "dropped"};
+
+	private static class Entry {
+		final String session;
+		final int status;
+		final String hash;
+		final long size, modified;
+
+		Entry(String session, int status, String hash, long size, long modified) {
+			this.session = session;
+			this.status = status;
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		boolean done() {
+			return status == DETECTED || status == FAILED;
+		}
+
+		boolean finished() {
+			return done() || status == DROPPED;
+		}
+	}
+
+	private final File dir;
+	private final FileChannel channel;
+	private final FileLock sessionLock;
+	private final String session;
+	private final Map<String, Entry> latest = new HashMap<>(); // file key -> its last event
+	private final Set<String> doneHashes = new HashSet<>();
+	private final Set<String> emitted = new HashSet<>(); // "hash turn" of every problem handed out
+	private final Map<String, Long> started = new HashMap<>(); // file key -> when this session queued it
+	private long readTo; // how much of the file is in the maps
+	private boolean partialLine; // a scanner died mid append, start ours on a new line
+	private int skippedDone, skippedBusy;
+
+	public ScanJournal(File dir) throws IOException {
+		this.dir = dir;
+		channel = FileChannel.open(new File(dir, FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Random random = new Random();
+		FileLock lock;
+		int slot;
+		do {
+			slot = random.nextInt(1 << 30);
+			lock = tryLock(SESSION_LOCKS + slot);
+		} while (lock == null);
+		sessionLock = lock;
+		session = Integer.toString(slot);
+		FileLock l = channel.lock(0, SESSION_LOCKS, false);
+		try {
+			refresh();
+		} finally {
+			l.release();
+		}
+		System.out.println("scan journal: " + latest.size() + " files seen before, " + doneHashes.size() + " done");
+	}
+
+	// a lock on one byte, null if another scanner has it
+	private FileLock tryLock(long at) throws IOException {
+		try {
+			return channel.tryLock(at, 1, false);
+		} catch (OverlappingFileLockException e) {
+			return null; // held by another journal in this vm
+		}
+	}
+
+	private boolean alive(String otherSession) throws IOException {
+		if (otherSession.equals(session))
+			return true;
+		FileLock l = tryLock(SESSION_LOCKS + Long.parseLong(otherSession));
+		if (l == null)
+			return true;
+		l.release();
+		return false;
+	}
+
+	// reads lines other scanners appended since we last looked. called holding the append lock
+	private void refresh() throws IOException {
+		long end = channel.size();
+		if (end <= readTo)
+			return;
+		ByteBuffer buf = ByteBuffer.allocate((int) (end - readTo));
+		while (buf.hasRemaining() && channel.read(buf, readTo + buf.position()) >= 0)
+			;
+		String text = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+		int lastNl = text.lastIndexOf('\n');
+		for (String line: text.substring(0, lastNl + 1).split("\n"))
+			parse(line);
+		// nobody else writes without the lock, so an unfinished line is from a scanner that died
+		partialLine = lastNl < text.length() - 1;
+		readTo = end;
+	}
+
+	private void parse(String line) {
+		String[] f = line.split("\t", -1);
+		if (f.length < 9)
+			return;
+		int status = -1;
+		for (int i = 0; i < STATUS.length; i++) {
+			if (STATUS[i].equals(f[2]))
+				status = i;
+		}
+		if (status < 0)
+			return;
+		try {
+			Entry e = new Entry(f[1], status, f[4], Long.parseLong(f[5]), Long.parseLong(f[6]));
+			latest.put(f[3], e);
+			if (e.done())
+				doneHashes.add(e.hash);
+			if (status == PROBLEM)
+				emitted.add(e.hash + " " + f[8]);
+		} catch (NumberFormatException ex) {
+			// garbled line
+		}
+	}
+
+	private void append(int status, String fileName, Entry claim, long ms, String detail) {
+		try {
+			FileLock l = channel.lock(0, SESSION_LOCKS, false);
+			try {
+				refresh();
+				write(status, fileName, claim, ms, detail);
+			} finally {
+				l.release();
+			}
+		} catch (IOException e) {
+			e.printStackTrace(); // the scan goes on, the game is just scanned again next time
+		}
+	}
+
+	// one line in one write, called holding the append lock after a refresh
+	private void write(int status, String fileName, Entry claim, long ms, String detail) throws IOException {
+		String line = System.currentTimeMillis() + "\t" + session + "\t" + STATUS[status] + "\t" + clean(fileName) + "\t"
+				+ claim.hash + "\t" + claim.size + "\t" + claim.modified + "\t" + ms + "\t" + clean(detail) + "\n";
+		ByteBuffer buf = ByteBuffer.wrap(((partialLine ? "\n" : "") + line).getBytes(StandardCharsets.UTF_8));
+		long at = channel.size();
+		while (buf.hasRemaining())
+			at += channel.write(buf, at);
+		channel.force(false);
+		partialLine = false;
+		readTo = at;
+		parse(line.substring(0, line.length() - 1));
+	}
+
+	private static String clean(String s) {
+		return s.replace('\t', ' ').replace('\n', ' ');
+	}
+
+	// the path under the scanned directory, so files with the same name in different folders stay apart.
+	// a file right in the directory is just its name, as older journals have it
+	private String key(File f) {
+		try {
+			return dir.toPath().toAbsolutePath().normalize().relativize(f.toPath().toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+		} catch (IllegalArgumentException e) {
+			return f.getAbsolutePath(); // not under dir
+		}
+	}
+
+	// a quick look that needs no reading: the file is done and hasn't changed since
+	public synchronized boolean isDone(File f) {
+		Entry e = latest.get(key(f));
+		if (e != null && e.done() && e.size == f.length() && e.modified == f.lastModified()) {
+			skippedDone++;
+			return true;
+		}
+		return false;
+	}
+
+	// marks the file queued by this scanner, unless its content is already done or another scanner is on it
+	public synchronized boolean claim(File f, String sgf) {
+		String name = key(f);
+		String hash = AnalysisStore.hashSgf(sgf);
+		try {
+			FileLock l = channel.lock(0, SESSION_LOCKS, false);
+			try {
+				refresh();
+				if (doneHashes.contains(hash)) {
+					skippedDone++;
+					return false;
+				}
+				Entry e = latest.get(name);
+				if (e != null && e.hash.equals(hash) && (e.status == QUEUED || e.status == ANALYSED || e.status == PROBLEM)
+						&& !e.session.equals(session) && alive(e.session)) {
+					skippedBusy++;
+					return false;
+				}
+				// still holding the lock, so no other scanner can claim it in between
+				write(QUEUED, name, new Entry(session, QUEUED, hash, f.length(), f.lastModified()), 0, "");
+			} finally {
+				l.release();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true; // scan it anyway, it just won't be remembered
+		}
+		started.put(name, System.currentTimeMillis());
+		return true;
+	}
+
+	// the entry this session queued, with ms since then
+	private Entry claimed(String fileName) {
+		Entry e = latest.get(fileName);
+		return e != null && e.session.equals(session) ? e : null;
+	}
+
+	private long elapsed(String fileName) {
+		Long at = started.get(fileName);
+		return at == null ? 0 : System.currentTimeMillis() - at;
+	}
+
+	// katago's answers can come in after detection is already over, and by then there's nothing to add.
+	// written anyway it would hide the finished line, and the next scan would have to read the file again
+	public synchronized void analysed(File f) {
+		String fileName = key(f);
+		Entry e = claimed(fileName);
+		if (e != null && !e.finished())
+			append(ANALYSED, fileName, e, elapsed(fileName), "");
+	}
+
+	// true if an earlier scan already handed out this problem, before dying partway through the game
+	public synchronized boolean wasEmitted(File f, int turn) {
+		Entry e = latest.get(key(f));
+		return e != null && emitted.contains(e.hash + " " + turn);
+	}
+
+	public synchronized void problem(File f, int turn) {
+		String fileName = key(f);
+		Entry e = claimed(fileName);
+		if (e != null)
+			append(PROBLEM, fileName, e, elapsed(fileName), "" + turn);
+	}
+
+	public synchronized void detected(File f, int found) {
+		finish(DETECTED, key(f), "" + found);
+	}
+
+	public synchronized void failed(File f, String why) {
+		finish(FAILED, key(f), why);
+	}
+
+	// cut short, free for another scanner or the next run
+	public synchronized void dropped(File f) {
+		finish(DROPPED, key(f), "");
+	}
+
+	private void finish(int status, String fileName, String detail) {
+		Entry e = claimed(fileName);
+		if (e != null)
+			append(status, fileName, e, elapsed(fileName), detail);
+		started.remove(fileName);
+	}
+
+	public synchronized String summary() {
+		return "scan journal: skipped " + skippedDone + " files already done, " + skippedBusy + " being scanned elsewhere";
+	}
+
+	public synchronized void close() {
+		try {
+			sessionLock.release();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
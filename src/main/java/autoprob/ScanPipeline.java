@@ -0,0 +1,233 @@
+package autoprob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// scans a directory of games several at a time, so katago always has queries waiting while java reads sgfs
+// and runs detectors. each game goes through:
+//   discovery (the calling thread, in file order), skipping games the journal has as done
+//   load: read the game, claim it in the journal, parse and send its query (scan.load_threads)
+//   detect: check turn pairs as katago answers them (scan.detect_threads)
+//   output: hand problems to the VisDetector, one at a time
+// scan.games_in_flight caps the games between discovery and the end of detection, which bounds every queue.
+// every step is written to the ScanJournal, so a scan stopped anywhere picks up where it was.
+public class ScanPipeline {
+	private static final DecimalFormat df = new DecimalFormat("0.0");
+
+	private final KataRunner runner;
+	private final AnalysisEngine brain;
+	private final VisDetector vis;
+	private final int searchVisits;
+	private final int targetProblems;
+	private final ExecutorService loaders, detectors, output;
+	private final int gamesInFlight;
+	private final Semaphore inFlight;
+	private final Set<Object> owners = ConcurrentHashMap.newKeySet(); // games between discovery and the end of detection
+	private final AtomicInteger gamesDone = new AtomicInteger(), gamesFailed = new AtomicInteger(), problemsFound = new AtomicInteger();
+	private ScanJournal journal;
+	private volatile boolean stopping = false;
+	private volatile Exception failure;
+	private long start;
+
+	public ScanPipeline(KataRunner runner, AnalysisEngine brain, VisDetector vis, Properties props) {
+		this.runner = runner;
+		this.brain = brain;
+		this.vis = vis;
+		searchVisits = Integer.parseInt(props.getProperty("search.visits"));
+		targetProblems = Integer.parseInt(props.getProperty("search.directory.max_finds"));
+		loaders = Executors.newFixedThreadPool(Integer.parseInt(props.getProperty("scan.load_threads", "1")), named("scan load"));
+		detectors = Executors.newFixedThreadPool(Integer.parseInt(props.getProperty("scan.detect_threads", "2")), named("scan detect"));
+		output = Executors.newSingleThreadExecutor(named("scan output"));
+		gamesInFlight = Integer.parseInt(props.getProperty("scan.games_in_flight", "4"));
+		inFlight = new Semaphore(gamesInFlight);
+	}
+
+	private static ThreadFactory named(String name) {
+		AtomicInteger n = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + " " + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	// scans the files the journal doesn't have as done yet
+	public void scan(File[] files, ScanJournal journal) throws Exception {
+		this.journal = journal;
+		start = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < files.length && !stopping; i++) {
+				final File file = files[i];
+				if (journal.isDone(file))
+					continue;
+				inFlight.acquire();
+				if (stopping) {
+					inFlight.release();
+					break;
+				}
+				System.out.println(i + " -- examining: " + file.getName());
+				Object owner = file; // the game's queries, cancelled together when we stop early
+				owners.add(owner);
+				CompletableFuture
+						.supplyAsync(() -> load(file, owner), loaders)
+						.thenApplyAsync(game -> game == null ? -1 : detect(file, game), detectors)
+						.whenComplete((found, ex) -> {
+							owners.remove(owner);
+							try {
+								if (ex != null && engineFailure(ex)) {
+									journal.dropped(file); // not the game's fault, try it again next time
+									fail(ex);
+								} else if (ex != null) {
+									// something about this game, the rest can still be scanned
+									Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+									System.out.println("scan: failed on " + file.getName() + ", going on");
+									cause.printStackTrace();
+									brain.cancel(owner); // whatever katago still has of it
+									journal.failed(file, cause.toString());
+									gamesFailed.incrementAndGet();
+								} else if (stopping) {
+									journal.dropped(file); // cut short games weren't really scanned
+								} else if (found >= 0) {
+									journal.detected(file, found);
+									gameDone(found);
+								}
+							} finally {
+								inFlight.release();
+							}
+						});
+			}
+			inFlight.acquire(gamesInFlight); // wait for what's still going
+		} finally {
+			loaders.shutdownNow();
+			detectors.shutdownNow();
+			output.shutdown();
+		}
+		System.out.println("scan: " + gamesDone.get() + " games, " + problemsFound.get() + " problems, " + gamesPerMinute() + " games/min"
+				+ (gamesFailed.get() > 0 ? ", " + gamesFailed.get() + " games failed" : ""));
+		if (failure != null)
+			throw failure;
+	}
+
+	// null if there's nothing to scan: already done, taken by another scanner, or not a usable sgf
+	private KataRunner.ScanGame load(File file, Object owner) {
+		String sgf;
+		try {
+			sgf = Files.readString(file.toPath());
+		} catch (IOException e) {
+			System.out.println("bailing on " + file.getName() + ": " + e);
+			return null;
+		}
+		if (!journal.claim(file, sgf)) {
+			System.out.println("skipping " + file.getName() + ", already scanned or being scanned");
+			return null;
+		}
+		KataRunner.ScanGame game;
+		try {
+			game = runner.parseGame(brain, sgf, file.getName(), 0, searchVisits, owner);
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+		if (game == null) {
+			journal.failed(file, "bad sgf");
+			return null;
+		}
+		// counted down rather than allOf, which would keep every answer around until the last one
+		AtomicInteger left = new AtomicInteger(game.futures.size());
+		game.futures.values().forEach(f -> f.whenComplete((kres, ex) -> {
+			if (left.decrementAndGet() == 0 && ex == null)
+				journal.analysed(file);
+		}));
+		return game;
+	}
+
+	private int detect(File file, KataRunner.ScanGame game) {
+		if (stopping) {
+			brain.cancel(game.query.owner); // sent after stop() cancelled the others
+			return 0;
+		}
+		try {
+			return runner.checkGame(brain, game, 0, det -> accept(det, file));
+		} catch (CancellationException e) {
+			return 0; // stopped while we waited on katago
+		} catch (Exception e) {
+			if (stopping && e.getCause() instanceof CancellationException)
+				return 0;
+			throw new CompletionException(e);
+		}
+	}
+
+	// problems go out one at a time, the VisDetector isn't made for several threads
+	private boolean accept(ProblemDetector det, File file) {
+		int turn = det.prev.turnNumber;
+		if (journal.wasEmitted(file, turn)) {
+			System.out.println("problem at turn " + turn + " was handed out by an earlier scan");
+			return false;
+		}
+		try {
+			boolean taken = output.submit(() -> vis.newDetection(brain, det, file.getName())).get();
+			if (taken) {
+				journal.problem(file, turn);
+				if (problemsFound.incrementAndGet() >= targetProblems)
+					stop();
+			}
+			return taken;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			throw new CompletionException(e.getCause());
+		}
+	}
+
+	private void gameDone(int found) {
+		int games = gamesDone.incrementAndGet();
+		if (found > 0)
+			System.out.println("searched games: " + games + ", total problems found: " + problemsFound.get());
+		System.out.println("scan: " + games + " games done, " + gamesPerMinute() + " games/min");
+	}
+
+	private String gamesPerMinute() {
+		double minutes = (System.currentTimeMillis() - start) / 60000.0;
+		return df.format(minutes <= 0 ? 0 : gamesDone.get() / minutes);
+	}
+
+	// katago can't go on, as opposed to something going wrong with one game
+	private static boolean engineFailure(Throwable ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof EngineException)
+				return true;
+		}
+		return false;
+	}
+
+	private void fail(Throwable ex) {
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		if (failure == null)
+			failure = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+		stop();
+	}
+
+	// found enough, or katago broke. games already sent to katago are cancelled
+	private synchronized void stop() {
+		if (stopping)
+			return;
+		stopping = true;
+		System.out.println("scan: stopping, cancelling " + owners.size() + " games in flight");
+		for (Object owner: owners)
+			brain.cancel(owner);
+	}
+}
@@ -10,7 +10,7 @@ import java.util.Properties;
 
 public class ShapePathCreator extends PathCreator {
 
-    public ShapePathCreator(ProblemDetector det, Properties props, KataBrain brain) {
+    public ShapePathCreator(ProblemDetector det, Properties props, AnalysisEngine brain) {
         super(det, props, brain);
     }
 
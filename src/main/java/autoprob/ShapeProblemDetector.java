@@ -4,6 +4,8 @@ import autoprob.go.*;
 import autoprob.go.action.*;
 import autoprob.katastruct.KataAnalysisResult;
 import autoprob.katastruct.MoveInfo;
+import autoprob.katastruct.QueryPriority;
+import autoprob.katastruct.QueryProfile;
 
 import java.awt.*;
 import java.util.ArrayList;
@@ -15,7 +17,7 @@ import java.util.Properties;
 public class ShapeProblemDetector extends ProblemDetector {
     private static final double MAX_RELEVANCE_DISTANCE = 2.5;
     private KataAnalysisResult rootAnalysis;
-    private KataBrain brain;
+    private AnalysisEngine brain;
     private String difficultyRank = "";
 
     // prev is the problem position. kar is the mistake position. node represents prev.
@@ -23,7 +25,7 @@ public class ShapeProblemDetector extends ProblemDetector {
         super(prev, mistake, node, props);
     }
 
-    public void detectProblem(KataBrain brain, boolean forceDetect) throws Exception {
+    public void detectProblem(AnalysisEngine brain, boolean forceDetect) throws Exception {
         validProblem = false;
         this.brain = brain;
 
@@ -48,7 +50,7 @@ public class ShapeProblemDetector extends ProblemDetector {
 
         System.out.println();
         System.out.println("evaluating shape problem... best move is " + prev.moveInfos.get(0).extString());
-        System.out.println("human top: " + prev.printTopPolicy(3, prev.humanPolicy));
+        System.out.println("human top: " + prev.printTopPolicy(3, prev.getHumanPolicy()));
         // max policy
         if (calcHighestPrior(prev) > MAX_POLICY) {
             System.out.println("too high policy: " + calcHighestPrior(prev) + " (max " + MAX_POLICY + ")");
@@ -56,7 +58,7 @@ public class ShapeProblemDetector extends ProblemDetector {
         }
         // max human policy check
         double maxHumanPolicy = Double.parseDouble(props.getProperty("shape.max_human_policy", "0.9"));
-        double humanSolvePolicy = prev.getTopPolicy(1, prev.humanPolicy).get(0).policy;
+        double humanSolvePolicy = prev.getTopPolicy(1, prev.getHumanPolicy()).get(0).policy;
         if (humanSolvePolicy > maxHumanPolicy) {
             System.out.println("too high human policy: " + humanSolvePolicy + " (max " + maxHumanPolicy + ")");
             if (!forceDetect) return;
@@ -76,6 +78,26 @@ public class ShapeProblemDetector extends ProblemDetector {
         int rootVisits = Integer.parseInt(props.getProperty("search.root_visits"));
         System.out.println("running in depth visits: " + rootVisits);
         var na = new NodeAnalyzer(props, dbgOwn);
+        na.setPriority(QueryPriority.DETECT); // ahead of the other games' scan queries
+        na.setProfile(QueryProfile.OWNERSHIP);
+
+        // cheaper looks first, most candidates don't survive them
+        ConfirmStages stages = new ConfirmStages(props, rootVisits);
+        for (int stage = 0; stage < stages.size(); stage++) {
+            int stageVisits = stages.visits(stage);
+            System.out.println("confirming with visits: " + stageVisits);
+            String reject = recheck(na.analyzeNode(brain, problem, stageVisits));
+            if (reject == null) {
+                stages.passed(stage);
+                continue;
+            }
+            System.out.println("rejected at " + stageVisits + " visits: " + reject);
+            stages.rejected(stage, 1);
+            if (!forceDetect)
+                return;
+        }
+        stages.survived(1);
+
         rootAnalysis = na.analyzeNode(brain, problem, rootVisits);
 
         MoveInfo topMove = rootAnalysis.moveInfos.get(0);
@@ -143,6 +165,8 @@ public class ShapeProblemDetector extends ProblemDetector {
         String diffRank = "";
         for (int level = 20; level >= -8; level -= 1) {
             var na = new NodeAnalyzer(props);
+            na.setPriority(QueryPriority.DETECT);
+            na.setProfile(QueryProfile.POLICY); // just the human policy
             String rank = (level > 0) ? level + "k" : (-level + 1) + "d";
             KataAnalysisResult kar = null;
             try {
@@ -153,7 +177,7 @@ public class ShapeProblemDetector extends ProblemDetector {
                 boolean chooseFromMultiple = true;
                 if (chooseFromMultiple) {
                     // see if the correct move is the top human moves out of the multiple choice
-                    List<KataAnalysisResult.Policy> top = kar.getTopPolicy(0, kar.humanPolicy); // gets all, sorted
+                    List<KataAnalysisResult.Policy> top = kar.getTopPolicy(0, kar.getHumanPolicy()); // gets all, sorted
                     // run through these in order. look at the first one that matches one of the paths in the tree
                     humanmoves: for (var pol : top) {
                         String mv = Intersection.toGTPloc(pol.x, pol.y);
@@ -170,7 +194,7 @@ public class ShapeProblemDetector extends ProblemDetector {
                     }
                 } else {
                     // just look if top human move is correct
-                    List<KataAnalysisResult.Policy> top = kar.getTopPolicy(1, kar.humanPolicy);
+                    List<KataAnalysisResult.Policy> top = kar.getTopPolicy(1, kar.getHumanPolicy());
                     var topMove = top.get(0);
                     String mv = Intersection.toGTPloc(topMove.x, topMove.y);
                     System.out.println("top human move at " + rank + ": " + mv + ", vs correct: " + correctMove);
@@ -224,6 +248,8 @@ public class ShapeProblemDetector extends ProblemDetector {
         Node tenukiNode = problem.addBasicMove(best.x, best.y);
 
         var na = new NodeAnalyzer(props);
+        na.setPriority(QueryPriority.DETECT);
+        na.setProfile(QueryProfile.OWNERSHIP);
         int visits = Integer.parseInt(props.getProperty("paths.visits"));
         var karTenuki = na.analyzeNode(brain, tenukiNode, visits);
 
@@ -368,6 +394,17 @@ public class ShapeProblemDetector extends ProblemDetector {
         return stoneGroups;
     }
 
+    // the checks the in depth analysis gets, on a cheaper one. null if it still looks good
+    private String recheck(KataAnalysisResult kar) {
+        MoveInfo topMove = kar.moveInfos.get(0);
+        double distanceToBoard = nearestBoardDistance(Intersection.gtp2point(topMove.move), problem.board.board);
+        if (distanceToBoard > MAX_RELEVANCE_DISTANCE)
+            return "top move " + topMove.move + " is too far from problem: " + df.format(distanceToBoard);
+        if (!validateTopMoveMargin(kar))
+            return "second move too good";
+        return null;
+    }
+
     private boolean validateTopMoveMargin(KataAnalysisResult kar) {
         double minTopMoveScoreMargin = Double.parseDouble(props.getProperty("shape.min_top_move_score_margin", "4"));
         MoveInfo topMove = kar.moveInfos.get(0);
@@ -431,7 +468,7 @@ public class ShapeProblemDetector extends ProblemDetector {
                 if (x == p.x && y == p.y) continue; // same as top move
                 if (!node.board.board[x][y].isEmpty()) continue;
 
-                double policy = karRoot.policy.get(x + y * 19);
+                double policy = karRoot.getPolicy()[x + y * 19];
                 if (policy < minPolicy) continue;
 
                 // make sure this move is near other stones
@@ -456,7 +493,7 @@ public class ShapeProblemDetector extends ProblemDetector {
         Point p = Intersection.gtp2point(topMove.move);
         int visits = Integer.parseInt(props.getProperty("paths.visits"));
 
-        List<KataAnalysisResult.Policy> top = karRoot.getTopPolicy(3, karRoot.humanPolicy);
+        List<KataAnalysisResult.Policy> top = karRoot.getTopPolicy(3, karRoot.getHumanPolicy());
 
         for (KataAnalysisResult.Policy pol: top) {
             if (pol.x == p.x && pol.y == p.y) continue; // same as top move
@@ -482,7 +519,7 @@ public class ShapeProblemDetector extends ProblemDetector {
         return true;
     }
 
-//    private void tryNearbyMoves(KataBrain brain, MoveInfo topMove, NodeAnalyzer na, KataAnalysisResult karRoot) throws Exception {
+//    private void tryNearbyMoves(AnalysisEngine brain, MoveInfo topMove, NodeAnalyzer na, KataAnalysisResult karRoot) throws Exception {
 //        // evaluate nearby possible moves
 //        int maxDist = 1;
 //        Point p = Intersection.gtp2point(topMove.move);
@@ -747,13 +784,13 @@ public class ShapeProblemDetector extends ProblemDetector {
             for (int y = 0; y < 19; y++) {
                 int stn = node.board.board[x][y].stone;
                 if (stn == 0) continue;
-                double od = kar.ownership.get(x + y * 19) - prev.ownership.get(x + y * 19);
+                double od = kar.getOwnership()[x + y * 19] - prev.getOwnership()[x + y * 19];
                 // negative ownership is white, positive is black
                 maxDelta = Math.max(maxDelta, Math.abs(od));
                 if (Math.abs(od) > threshold) {
                     if (dbg) {
                         System.out.println("ownership delta: " + df.format(od) + ", " + Intersection.toGTPloc(x, y, 19) +
-                                " (" + df.format(prev.ownership.get(x + y * 19)) + " -> " + df.format(kar.ownership.get(x + y * 19)) + ")");
+                                " (" + df.format(prev.getOwnership()[x + y * 19]) + " -> " + df.format(kar.getOwnership()[x + y * 19]) + ")");
                     }
                     double lifeChange = od;
                     if (stn == Intersection.WHITE) {
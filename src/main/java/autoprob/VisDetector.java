@@ -23,7 +23,7 @@ public class VisDetector {
     }
 
     // process a detection, including rejecting it if it's a duplicate
-    public boolean newDetection(KataBrain brain, ProblemDetector det, String fileName) {
+    public boolean newDetection(AnalysisEngine brain, ProblemDetector det, String fileName) {
         // check dup from previous
         if (prevDetection != null) {
             // compare
@@ -8,11 +8,12 @@ public class VisRunner {
 		System.out.println("vis runner start...");
 
 		Properties prop = ExecBase.getRunConfig(args);
+		var brainStart = KataBrain.startAsync(prop); // katago takes a while to load, get it going first
 
 		KataRunner kr = new KataRunner(prop);
 		var vd = new VisDetector(prop);
 		try {
-			kr.startEngine(vd);
+			kr.startEngine(vd, brainStart);
 		} catch (Exception e) {
 			e.printStackTrace();
 //			System.exit(-1);
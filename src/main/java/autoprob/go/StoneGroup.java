@@ -34,7 +34,7 @@ public class StoneGroup {
         // iterate through all stones, average out ownership
         double sum = 0;
         for (Point p : stones) {
-            sum += kar.ownership.get(p.x + p.y * 19);
+            sum += kar.getOwnership()[p.x + p.y * 19];
         }
         ownership = sum / stones.size();
     }
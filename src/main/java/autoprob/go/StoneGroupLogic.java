@@ -81,7 +81,7 @@ public class StoneGroupLogic {
 
     // calculate a group delta
     public double groupDelta(StoneGroup sg, KataAnalysisResult kar) {
-    	return sg.ownership - (sg.stone == Intersection.BLACK ? kar.ownership.get(0) : kar.ownership.get(1));
+    	return sg.ownership - (sg.stone == Intersection.BLACK ? kar.getOwnership()[0] : kar.getOwnership()[1]);
     }
 
     public static class PointCount {
@@ -101,7 +101,7 @@ public class StoneGroupLogic {
         // tried this at this point
         fill[x][y] = true;
 
-        double own = kar.ownership.get(x + y * 19);
+        double own = kar.getOwnership()[x + y * 19];
         // first check magnitude
         if (Math.abs(own) < minOwnership) return;
         // now make sure it's aligned with original color
@@ -124,7 +124,7 @@ public class StoneGroupLogic {
         for (int startx = 0; startx < 19; startx += 18) {
             for (int starty = 0; starty < 19; starty += 18) {
                 boolean[][] fill = new boolean[19][19];
-                double own = kar.ownership.get(startx + starty * 19);
+                double own = kar.getOwnership()[startx + starty * 19];
                 PointCount pc = new PointCount(own > 0 ? Intersection.BLACK : Intersection.WHITE, 0);
                 floodRecurseOwnership(startx, starty, board, fill, pc, kar, minOwnership);
                 System.out.println("corner points: (" + startx + ", " + starty + ") : " + Intersection.color2name(pc.stone) + " = " + pc.count);
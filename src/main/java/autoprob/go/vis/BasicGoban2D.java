@@ -19,7 +19,6 @@ import java.awt.TexturePaint;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.util.Enumeration;
-import java.util.List;
 
 import autoprob.go.Board;
 import autoprob.go.Intersection;
@@ -36,11 +35,11 @@ public class BasicGoban2D extends BasicGoban {
     public static Image   lastMoveBlackImg = Pix.loadResourceImage("v2/lastmoveblk.png");
     
     private AlphaComposite alphaLines = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f);
-	private List<Double> ownership;
+	private double[] ownership;
     private static final BasicStroke chosenStroke   = new BasicStroke(2.0f, BasicStroke.CAP_ROUND,
             BasicStroke.JOIN_ROUND);
 
-	public BasicGoban2D(Node node, List<Double> ownership) {
+	public BasicGoban2D(Node node, double[] ownership) {
 		super(node);
 		this.ownership = ownership;
 
@@ -360,7 +359,7 @@ public class BasicGoban2D extends BasicGoban {
     	if (ownership == null)
     		return;
     	
-    	double o = ownership.get(y * 19 + x);
+    	double o = ownership[y * 19 + x];
     	if (Math.abs(o) < 0.2) return;
     	
         int mid = sz / 2;
@@ -4,6 +4,8 @@ import java.awt.*;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
@@ -33,10 +35,48 @@ public class KataAnalysisResult {
 	@Expose
 	public Integer turnNumber;
 
-	public List<Double> ownership = null;
-	public List<Double> ownershipStdev = null;
-	public List<Double> policy = null;
-	public List<Double> humanPolicy = null;
+	public double[] ownership = null;
+	public double[] ownershipStdev = null;
+	public double[] policy = null;
+	public double[] humanPolicy = null;
+
+	// with kata.check_profiles, the profile the query asked for. katago is then asked for everything,
+	// and the getters below report reads of arrays the profile left out, once per place in the code
+	public transient QueryProfile profile;
+	public static boolean checkProfiles = false;
+	private static final Set<String> reportedReads = ConcurrentHashMap.newKeySet();
+
+	public double[] getOwnership() {
+		if (checkProfiles && profile != null && !profile.ownership)
+			reportRead("ownership");
+		return ownership;
+	}
+
+	public double[] getOwnershipStdev() {
+		if (checkProfiles && profile != null && !profile.ownershipStdev)
+			reportRead("ownershipStdev");
+		return ownershipStdev;
+	}
+
+	public double[] getPolicy() {
+		if (checkProfiles && profile != null && !profile.policy)
+			reportRead("policy");
+		return policy;
+	}
+
+	public double[] getHumanPolicy() {
+		if (checkProfiles && profile != null && !profile.policy)
+			reportRead("humanPolicy");
+		return humanPolicy;
+	}
+
+	private void reportRead(String field) {
+		StackWalker.StackFrame caller = StackWalker.getInstance().walk(frames ->
+				frames.filter(f -> !f.getClassName().equals(KataAnalysisResult.class.getName())).findFirst().orElse(null));
+		String site = caller == null ? "?" : caller.getClassName() + "." + caller.getMethodName() + ":" + caller.getLineNumber();
+		if (reportedReads.add(field + "@" + site))
+			System.out.println("query profile " + profile + " doesn't include " + field + ", read at " + site + " (query " + id + ")");
+	}
 
 	public static class Policy {
 		public double policy;
@@ -76,11 +116,12 @@ public class KataAnalysisResult {
 
 	// print a graphical representation of owned stones
 	public void drawOwnership(Node node) {
-		if (ownership == null) return;
+		double[] own = getOwnership();
+		if (own == null) return;
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				if (node.board.board[x][y].stone != Intersection.EMPTY) {
-					double o = ownership.get(x + y * 19);
+					double o = own[x + y * 19];
 					if (o > OWN_THRESH)
 						System.out.print('b');
 					else if (o < -OWN_THRESH)
@@ -98,11 +139,12 @@ public class KataAnalysisResult {
 
 	// print a graphical representation of owned stones, with a numeral
 	public void drawNumericalOwnership(Node node) {
-		if (ownership == null) return;
+		double[] own = getOwnership();
+		if (own == null) return;
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				if (node.board.board[x][y].stone != Intersection.EMPTY) {
-					double o = ownership.get(x + y * 19);
+					double o = own[x + y * 19];
 					if (o > 0) {
 						int d = (int) (o * 9.99);
 						// print padded int to 2 digits
@@ -129,11 +171,12 @@ public class KataAnalysisResult {
 
 	// print a graphical representation
 	public void drawPolicy(Node node) {
-		if (policy == null) return;
+		double[] pol = getPolicy();
+		if (pol == null) return;
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				if (node.board.board[x][y].stone == Intersection.EMPTY) {
-					double o = policy.get(x + y * 19);
+					double o = pol[x + y * 19];
 					if (o > 0.01) {
 						int d = (int) (o * 99.99);
 						// print padded int to 2 digits
@@ -156,12 +199,13 @@ public class KataAnalysisResult {
 
 	// returns top num policy moves with their board locations
 	public List<Policy> getTopPolicy(int num, List<Point> moves, boolean includeMoves) {
+		double[] pol = getPolicy();
 		List<Policy> top = new ArrayList<>();
 		// add all policy locations to list, then sort
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				Policy p = new Policy();
-				p.policy = policy.get(x + y * 19);
+				p.policy = pol[x + y * 19];
 				p.x = x;
 				p.y = y;
 				if (includeMoves) {
@@ -182,13 +226,13 @@ public class KataAnalysisResult {
 	}
 
 	// returns top num policy moves with their board locations
-	public List<Policy> getTopPolicy(int num, List<Double> policy) {
+	public List<Policy> getTopPolicy(int num, double[] policy) {
 		List<Policy> top = new ArrayList<>();
 		// add all policy locations to list, then sort
 		for (int y = 0; y < 19; y++) {
 			for (int x = 0; x < 19; x++) {
 				Policy p = new Policy();
-				p.policy = policy.get(x + y * 19);
+				p.policy = policy[x + y * 19];
 				p.x = x;
 				p.y = y;
 				top.add(p);
@@ -202,7 +246,7 @@ public class KataAnalysisResult {
 		return top;
 	}
 
-	public String printTopPolicy(int num, List<Double> policy) {
+	public String printTopPolicy(int num, double[] policy) {
 		StringBuilder sb = new StringBuilder();
 		List<Policy> top = getTopPolicy(num, policy);
 		for (Policy p: top) {
@@ -63,6 +63,34 @@ public class KataQuery {
 	@Expose
 	public OverrideSettings overrideSettings;
 
+	// katago prefers queries with higher priority, set through setPriority
+	@SerializedName("priority")
+	@Expose
+	public Integer priority;
+
+	// seconds between in-search reports. only set for queries that may stop early
+	@SerializedName("reportDuringSearchEvery")
+	@Expose
+	public Double reportDuringSearchEvery;
+
+	// if set, the query is terminated as soon as this says katago's in-search report has settled. not sent to katago
+	public transient StabilityCheck stopWhen;
+
+	// whoever asked, so KataBrain.cancel can drop everything they sent. not sent to katago
+	public transient Object owner;
+
+	// who is asking, for metrics. not sent to katago
+	public transient QueryCaller caller = QueryCaller.OTHER;
+
+	// our scheduling class, not sent to katago
+	public transient QueryPriority priorityClass = QueryPriority.SCAN;
+
+	// true for the human model engine, false for the main one, null to let KataBrain route by what's asked. not sent to katago
+	public transient Boolean humanEngine;
+
+	// the arrays asked for, set through setProfile. not sent to katago
+	public transient QueryProfile profile;
+
 	public static class OverrideSettings {
 		@SerializedName("humanSLProfile")
 		@Expose
@@ -110,6 +138,18 @@ public class KataQuery {
 		return s;
 	}
 
+	public void setPriority(QueryPriority p) {
+		priorityClass = p;
+		priority = p.kataPriority;
+	}
+
+	public void setProfile(QueryProfile p) {
+		profile = p;
+		includeOwnership = p.ownership;
+		includeOwnershipStdev = p.ownershipStdev;
+		includePolicy = p.policy;
+	}
+
 	public void setHumanSLrank(String rank) {
 		if (overrideSettings == null) {
 			overrideSettings = new OverrideSettings();
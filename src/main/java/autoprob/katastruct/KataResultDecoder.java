@@ -0,0 +1,80 @@
+package autoprob.katastruct;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * streaming decoder for katago analysis response lines.
+ * the big per-intersection arrays are read straight into double[] instead of boxing
+ * every value into a List<Double> like gson.fromJson would.
+ * not thread safe, each reader thread should have its own.
+ */
+public class KataResultDecoder {
+	private final TypeAdapter<RootInfo> rootInfoAdapter;
+	private final TypeAdapter<MoveInfo> moveInfoAdapter;
+	private double[] buf = new double[362]; // scratch space, grown if a bigger board shows up
+
+	public KataResultDecoder() {
+		Gson gson = new Gson();
+		rootInfoAdapter = gson.getAdapter(RootInfo.class);
+		moveInfoAdapter = gson.getAdapter(MoveInfo.class);
+	}
+
+	// decode one json line from katago. unknown fields are skipped.
+	public KataAnalysisResult decode(String line) throws IOException {
+		KataAnalysisResult kres = new KataAnalysisResult();
+		try (JsonReader in = new JsonReader(new StringReader(line))) {
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.skipValue();
+					continue;
+				}
+				switch (name) {
+					case "id" -> kres.id = in.nextString();
+					case "isDuringSearch" -> kres.isDuringSearch = in.nextBoolean();
+					case "turnNumber" -> kres.turnNumber = in.nextInt();
+					case "rootInfo" -> kres.rootInfo = rootInfoAdapter.read(in);
+					case "moveInfos" -> kres.moveInfos = readMoveInfos(in);
+					case "ownership" -> kres.ownership = readDoubles(in);
+					case "ownershipStdev" -> kres.ownershipStdev = readDoubles(in);
+					case "policy" -> kres.policy = readDoubles(in);
+					case "humanPolicy" -> kres.humanPolicy = readDoubles(in);
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+		}
+		return kres;
+	}
+
+	private ArrayList<MoveInfo> readMoveInfos(JsonReader in) throws IOException {
+		ArrayList<MoveInfo> moves = new ArrayList<>();
+		in.beginArray();
+		while (in.hasNext()) {
+			moves.add(moveInfoAdapter.read(in));
+		}
+		in.endArray();
+		return moves;
+	}
+
+	private double[] readDoubles(JsonReader in) throws IOException {
+		int n = 0;
+		in.beginArray();
+		while (in.hasNext()) {
+			if (n == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			buf[n++] = in.nextDouble();
+		}
+		in.endArray();
+		return Arrays.copyOf(buf, n);
+	}
+}
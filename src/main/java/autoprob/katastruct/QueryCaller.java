@@ -0,0 +1,11 @@
+package autoprob.katastruct;
+
+// what part of the program sent a query, so engine metrics can be broken down by it
+public enum QueryCaller {
+	SCAN, // game scanning in KataRunner
+	DETECTOR, // deeper checks on a candidate problem
+	PATH, // path creation
+	JOSEKI,
+	SOLVE, // GoTool solve
+	OTHER
+}
@@ -0,0 +1,16 @@
+package autoprob.katastruct;
+
+// scheduling class of a query. higher classes leave our queue first, and katago's own
+// priority field makes its search threads prefer them too.
+public enum QueryPriority {
+	INTERACTIVE(20), // a person is waiting on the answer
+	PATHS(10), // path creation, started from the gui
+	DETECT(5), // a detector's closer look at a turn the scan picked out, a few of them hold up finding a problem
+	SCAN(0); // background game scanning
+
+	public final int kataPriority;
+
+	QueryPriority(int kataPriority) {
+		this.kataPriority = kataPriority;
+	}
+}
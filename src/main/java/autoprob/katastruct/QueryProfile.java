@@ -0,0 +1,21 @@
+package autoprob.katastruct;
+
+// which per intersection arrays a query asks katago for. each is 362 numbers katago has to print
+// and we have to parse, so callers ask only for what they read. moveInfos and rootInfo always come back.
+// human policy comes with policy when a human profile is set.
+public enum QueryProfile {
+	SCORES(false, false, false), // scores and moves only
+	POLICY(false, false, true),
+	OWNERSHIP(true, false, true), // ownership and policy, what detection reads
+	FULL(true, true, true); // plus ownership stdev, for display and stored analysis
+
+	public final boolean ownership;
+	public final boolean ownershipStdev;
+	public final boolean policy;
+
+	QueryProfile(boolean ownership, boolean ownershipStdev, boolean policy) {
+		this.ownership = ownership;
+		this.ownershipStdev = ownershipStdev;
+		this.policy = policy;
+	}
+}
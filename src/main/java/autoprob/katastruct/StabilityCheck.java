@@ -0,0 +1,44 @@
+package autoprob.katastruct;
+
+import java.util.Properties;
+
+// decides from katago's in-search reports whether a query's answer has settled, so it can be stopped early.
+// previous is the last report for the same query and turn, null for the first one.
+public interface StabilityCheck {
+	boolean isStable(KataAnalysisResult previous, KataAnalysisResult current);
+
+	default StabilityCheck or(StabilityCheck other) {
+		return (prev, cur) -> isStable(prev, cur) || other.isStable(prev, cur);
+	}
+
+	// no intersection's ownership moved more than maxChange since the last report
+	static StabilityCheck ownershipSettled(double maxChange, int minVisits) {
+		return (prev, cur) -> {
+			if (prev == null || prev.ownership == null || cur.ownership == null) return false;
+			if (cur.rootInfo == null || cur.rootInfo.visits < minVisits) return false;
+			for (int i = 0; i < cur.ownership.length; i++) {
+				if (Math.abs(cur.ownership[i] - prev.ownership[i]) > maxChange)
+					return false;
+			}
+			return true;
+		};
+	}
+
+	// the top move has taken at least share of the root's visits
+	static StabilityCheck topMoveShare(double share, int minVisits) {
+		return (prev, cur) -> {
+			if (cur.rootInfo == null || cur.rootInfo.visits < minVisits) return false;
+			if (cur.moveInfos == null || cur.moveInfos.isEmpty()) return false;
+			return cur.moveInfos.get(0).visits >= share * cur.rootInfo.visits;
+		};
+	}
+
+	// ownership check configured by kata.early_stop.*, or null when early stopping is off
+	static StabilityCheck fromProps(Properties props) {
+		if (!Boolean.parseBoolean(props.getProperty("kata.early_stop", "false")))
+			return null;
+		double maxChange = Double.parseDouble(props.getProperty("kata.early_stop.ownership_change", "0.02"));
+		int minVisits = Integer.parseInt(props.getProperty("kata.early_stop.min_visits", "400"));
+		return ownershipSettled(maxChange, minVisits);
+	}
+}
@@ -0,0 +1,73 @@
+package autoprob.test;
+
+import autoprob.AnalysisEngine;
+import autoprob.ExecBase;
+import autoprob.KataBrain;
+import autoprob.KataRunner;
+import autoprob.PathCreator;
+import autoprob.ProblemDetector;
+import autoprob.VisDetector;
+import autoprob.go.Node;
+import autoprob.go.NodeChangeListener;
+
+import java.text.DecimalFormat;
+import java.util.Properties;
+
+// times a headless scan against the fake engine, so changes to the pipeline can be compared without katago.
+// usage: FakeBench config.properties path=some_games [bench.paths=true] [fake.ms_per_visit=0.01]
+public class FakeBench {
+    private static final DecimalFormat df = new DecimalFormat("0.00");
+
+    public static void main(String[] args) throws Exception {
+        Properties props = ExecBase.getRunConfig(args);
+        props.setProperty("katago", "fake");
+        props.setProperty("output.save2dir", "true");
+        props.setProperty("output.no_gui", "true");
+        props.setProperty("output.dir", props.getProperty("bench.output_dir", System.getProperty("java.io.tmpdir")));
+        boolean makePaths = Boolean.parseBoolean(props.getProperty("bench.paths", "false"));
+
+        int[] detections = {0};
+        long[] pathMs = {0};
+        KataBrain[] seen = {null};
+        VisDetector vis = new VisDetector(props) {
+            @Override
+            public boolean newDetection(AnalysisEngine brain, ProblemDetector det, String fileName) {
+                if (!super.newDetection(brain, det, fileName))
+                    return false;
+                detections[0]++;
+                if (brain instanceof KataBrain kb)
+                    seen[0] = kb;
+                if (makePaths)
+                    pathMs[0] += createPaths(brain, det, props);
+                return true;
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        new KataRunner(props).startEngine(vis);
+        long ms = System.currentTimeMillis() - start;
+
+        System.out.println("bench: " + detections[0] + " problems in " + df.format(ms / 1000.0) + " s");
+        if (makePaths)
+            System.out.println("bench: path creation " + df.format(pathMs[0] / 1000.0) + " s");
+        if (seen[0] != null)
+            System.out.println(seen[0].metrics.summary());
+        System.exit(0); // the brain's reader threads keep the vm alive
+    }
+
+    private static long createPaths(AnalysisEngine brain, ProblemDetector det, Properties props) {
+        long start = System.currentTimeMillis();
+        PathCreator pc = new PathCreator(det, props, brain);
+        PathCreator.GenOptions gopts = pc.new GenOptions();
+        gopts.pathsVisits = Integer.parseInt(props.getProperty("paths.visits", "1000"));
+        try {
+            pc.makePaths(det.getProblem(), null, gopts, new NodeChangeListener() {
+                public void newCurrentNode(Node node) {}
+                public void nodeChanged(Node node) {}
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,92 @@
+package autoprob.test;
+
+import autoprob.ExecBase;
+import autoprob.KataRunner;
+import autoprob.ScanJournal;
+import autoprob.VisDetector;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// checks the scan journal's records come out in an order the next scan can skip on. first by hand: a late
+// analysed after detected, and two files with the same name in different folders. then a fake engine scan
+// of a copy of a directory, after which every game's last line has to be a finished one and a new journal
+// has to see every game as done without reading it.
+// usage: JournalOrder config.properties path=sample_games
+public class JournalOrder {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Properties props = ExecBase.getRunConfig(args);
+        checkByHand();
+        checkScan(props);
+        System.out.println(failures == 0 ? "journal order: ok" : "journal order: " + failures + " failures");
+        System.exit(failures == 0 ? 0 : 1); // the brain's reader threads keep the vm alive
+    }
+
+    private static void checkByHand() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        File a = new File(dir, "a/game.sgf"), b = new File(dir, "b/game.sgf");
+        for (File f: new File[] {a, b}) {
+            f.getParentFile().mkdirs();
+            Files.writeString(f.toPath(), "(;GM[1]SZ[19];B[dd]" + (f == a ? "" : ";W[pp]") + ")");
+        }
+        ScanJournal journal = new ScanJournal(dir);
+        check(journal.claim(a, Files.readString(a.toPath())), "claim a");
+        check(journal.claim(b, Files.readString(b.toPath())), "claim b, same name as a in another folder");
+        journal.detected(a, 0);
+        journal.analysed(a); // katago's last answer coming in after detection
+        journal.close();
+
+        ScanJournal again = new ScanJournal(dir);
+        check(again.isDone(a), "a done after a late analysed");
+        check(!again.isDone(b), "b not done, only a was");
+        again.close();
+        check(lastStatus(dir).get("a/game.sgf").equals("detected"), "a's last line is detected");
+    }
+
+    private static void checkScan(Properties props) throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        File[] games = new File(props.getProperty("path")).listFiles((d, name) -> name.toLowerCase().endsWith(".sgf"));
+        for (File f: games)
+            Files.copy(f.toPath(), new File(dir, f.getName()).toPath());
+        props.setProperty("path", dir.getPath());
+        props.setProperty("katago", "fake");
+        props.setProperty("output.save2dir", "true");
+        props.setProperty("output.no_gui", "true");
+        props.setProperty("output.dir", dir.getPath());
+        new KataRunner(props).startEngine(new VisDetector(props));
+
+        Map<String, String> last = lastStatus(dir);
+        ScanJournal journal = new ScanJournal(dir);
+        for (File f: games) {
+            String status = last.get(f.getName());
+            check("detected".equals(status) || "failed".equals(status), f.getName() + " ends " + status);
+            check(journal.isDone(new File(dir, f.getName())), f.getName() + " skipped on the next scan");
+        }
+        journal.close();
+        System.out.println("journal order: scanned " + games.length + " games");
+    }
+
+    // file -> status of its last line
+    private static Map<String, String> lastStatus(File dir) throws Exception {
+        Map<String, String> last = new HashMap<>();
+        for (String line: Files.readAllLines(Path.of(dir.getPath(), ScanJournal.FILE_NAME))) {
+            String[] f = line.split("\t", -1);
+            if (f.length >= 9)
+                last.put(f[3], f[2]);
+        }
+        return last;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("journal order: FAILED " + what);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package autoprob.test;
+
+import autoprob.ExecBase;
+import autoprob.KataBrain;
+import autoprob.KataServer;
+import autoprob.QueryBuilder;
+import autoprob.go.Node;
+import autoprob.go.parse.Parser;
+import autoprob.katastruct.KataAnalysisResult;
+import autoprob.katastruct.KataQuery;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+// runs KataServer on the fake engine and points two brains at it over loopback, both asking about the same
+// game under the same query id. every turn should come back to the brain that asked, matching a local fake.
+// usage: LoopbackEngine config.properties path=some_game.sgf
+public class LoopbackEngine {
+    public static void main(String[] args) throws Exception {
+        Properties props = ExecBase.getRunConfig(args);
+        props.setProperty("katago", "fake");
+        Node game = new Parser().parse(Files.readString(Path.of(props.getProperty("path"))));
+
+        KataServer server = new KataServer(props, 0);
+        server.start();
+        Properties remote = (Properties) props.clone();
+        remote.setProperty("katago", "tcp://localhost:" + server.getPort());
+        remote.setProperty("kata.pool_size", "2");
+
+        KataBrain local = new KataBrain(props);
+        KataBrain a = new KataBrain(remote);
+        KataBrain b = new KataBrain(remote);
+        CompletableFuture.allOf(local.ready(), a.ready(), b.ready()).join();
+
+        long start = System.currentTimeMillis();
+        Map<Integer, CompletableFuture<KataAnalysisResult>> expected = local.doQuery(query(game));
+        Map<Integer, CompletableFuture<KataAnalysisResult>> fromA = a.doQuery(query(game));
+        Map<Integer, CompletableFuture<KataAnalysisResult>> fromB = b.doQuery(query(game));
+        int turns = 0, mismatches = 0;
+        for (int turn: expected.keySet()) {
+            KataAnalysisResult want = expected.get(turn).join();
+            for (KataAnalysisResult got: new KataAnalysisResult[] {fromA.get(turn).join(), fromB.get(turn).join()}) {
+                if (!got.id.equals(want.id) || !got.turnNumber.equals(want.turnNumber)
+                        || !got.rootInfo.scoreLead.equals(want.rootInfo.scoreLead)) {
+                    System.out.println("mismatch at turn " + turn + ": " + got.id + " " + got.turnNumber + " " + got.rootInfo.scoreLead
+                            + " vs " + want.rootInfo.scoreLead);
+                    mismatches++;
+                }
+            }
+            turns++;
+        }
+        System.out.println("loopback: " + turns + " turns to 2 clients in " + (System.currentTimeMillis() - start) + " ms, " + mismatches + " mismatches");
+
+        a.stop();
+        b.stop();
+        local.stop();
+        server.stop();
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    private static KataQuery query(Node game) {
+        KataQuery query = new QueryBuilder().buildQuery(game);
+        query.id = "loopback"; // the same for every client, the server keeps them apart
+        query.maxVisits = 100;
+        return query;
+    }
+}
@@ -0,0 +1,122 @@
+package autoprob.test;
+
+import autoprob.ExecBase;
+import autoprob.KataBrain;
+import autoprob.KataRunner;
+import autoprob.ProblemDetector;
+import autoprob.go.Node;
+
+import java.io.File;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+// scans a directory of games twice, once analyzing every turn at search.visits and once with the two-pass
+// prefilter (search.prefilter_visits), and reports how many of the single pass problems the prefilter kept.
+// nothing is saved or shown, problems are only counted.
+// it also reports recall one step earlier: of the turn pairs that pass the detector's cheap checks at
+// search.visits (the ones that get a deep look), how many the prefilter lets through. the fake engine
+// never gets a problem past the deep checks, but it does give candidates.
+// usage: PrefilterRecall config.properties path=sample_games [search.prefilter_visits=50] [recall.max_games=20]
+public class PrefilterRecall {
+    private static final DecimalFormat df = new DecimalFormat("0.0");
+
+    public static void main(String[] args) throws Exception {
+        Properties props = ExecBase.getRunConfig(args);
+        File[] files = new File(props.getProperty("path")).listFiles((dir, name) -> name.endsWith(".sgf"));
+        Arrays.sort(files);
+        int maxGames = Integer.parseInt(props.getProperty("recall.max_games", "" + files.length));
+        files = Arrays.copyOf(files, Math.min(maxGames, files.length));
+
+        Properties single = (Properties) props.clone();
+        single.setProperty("search.prefilter_visits", "0");
+        Properties twoPass = (Properties) props.clone();
+        if (Integer.parseInt(twoPass.getProperty("search.prefilter_visits", "0")) <= 0)
+            twoPass.setProperty("search.prefilter_visits", "50");
+
+        Set<String> all = new TreeSet<>(), kept = new TreeSet<>();
+        String singleRun = scan(single, files, all);
+        String twoPassRun = scan(twoPass, files, kept);
+        int[] candidates = candidateRecall(twoPass, files);
+
+        int found = 0;
+        for (String p: all) {
+            if (kept.contains(p))
+                found++;
+            else
+                System.out.println("recall: missed " + p);
+        }
+        System.out.println("recall: single pass " + singleRun);
+        System.out.println("recall: two pass (" + twoPass.getProperty("search.prefilter_visits") + " visits) " + twoPassRun);
+        System.out.println("recall: " + found + " of " + all.size() + " single pass problems kept"
+                + (all.isEmpty() ? "" : ", " + df.format(100.0 * found / all.size()) + "%")
+                + ", " + (kept.size() - found) + " found only by the two pass scan");
+        System.out.println("recall: " + candidates[1] + " of " + candidates[0] + " candidates kept"
+                + (candidates[0] == 0 ? "" : ", " + df.format(100.0 * candidates[1] / candidates[0]) + "%")
+                + ", " + candidates[2] + " of " + candidates[3] + " turn pairs sent to the second pass");
+        System.exit(0); // the brain's reader threads keep the vm alive
+    }
+
+    // {candidates at search.visits, of those kept by the prefilter, pairs kept, pairs}
+    private static int[] candidateRecall(Properties props, File[] files) throws Exception {
+        Properties strict = (Properties) props.clone(); // the cheap checks with no slack
+        strict.setProperty("search.prefilter.stone_slack", "1");
+        strict.setProperty("search.prefilter.extra_solutions", "0");
+        strict.setProperty("search.prefilter.policy_slack", "0");
+        Properties full = (Properties) props.clone();
+        full.setProperty("search.prefilter_visits", "0");
+        KataBrain brain = new KataBrain(full);
+        brain.ready().join();
+        KataRunner runner = new KataRunner(full);
+        KataRunner prefilterRunner = new KataRunner(props);
+        int searchVisits = Integer.parseInt(props.getProperty("search.visits"));
+        int[] counts = new int[4];
+        for (File f: files) {
+            KataRunner.ScanGame game = runner.loadGame(brain, f.getAbsolutePath(), f.getName(), 0, searchVisits, null);
+            KataRunner.ScanGame cheap = prefilterRunner.loadGame(brain, f.getAbsolutePath(), f.getName(), 0, searchVisits, null);
+            if (game == null || cheap == null)
+                continue;
+            Node n = game.node;
+            for (int turn = 1; game.futures.containsKey(turn) && n != null; turn++, n = n.favoriteSon()) {
+                if (n.favoriteSon() == null)
+                    break;
+                boolean candidate = new ProblemDetector(game.futures.get(turn - 1).join(), game.futures.get(turn).join(), n, strict).passesPrefilter();
+                boolean passed = new ProblemDetector(cheap.futures.get(turn - 1).join(), cheap.futures.get(turn).join(), n, props).passesPrefilter();
+                counts[3]++;
+                if (passed)
+                    counts[2]++;
+                if (candidate) {
+                    counts[0]++;
+                    if (passed)
+                        counts[1]++;
+                    else
+                        System.out.println("recall: prefilter dropped candidate " + f.getName() + " turn " + (turn - 1));
+                }
+            }
+        }
+        brain.stop();
+        return counts;
+    }
+
+    // problems found go in problems as file name plus turn. returns a summary of the run
+    private static String scan(Properties props, File[] files, Set<String> problems) throws Exception {
+        KataBrain brain = new KataBrain(props);
+        brain.ready().join();
+        KataRunner runner = new KataRunner(props);
+        int searchVisits = Integer.parseInt(props.getProperty("search.visits"));
+        long start = System.currentTimeMillis();
+        for (File f: files) {
+            KataRunner.ScanGame game = runner.loadGame(brain, f.getAbsolutePath(), f.getName(), 0, searchVisits, null);
+            if (game == null)
+                continue;
+            runner.checkGame(brain, game, 0, det -> problems.add(f.getName() + det.getFileNameExtras()));
+        }
+        long ms = System.currentTimeMillis() - start;
+        String summary = problems.size() + " problems in " + files.length + " games, " + df.format(ms / 1000.0) + " s\n"
+                + brain.metrics.summary();
+        brain.stop();
+        return summary;
+    }
+}
@@ -1,6 +1,6 @@
 package autoprob.vis;
 
-import autoprob.KataBrain;
+import autoprob.AnalysisEngine;
 import autoprob.ProblemDetector;
 import autoprob.go.Intersection;
 import autoprob.go.Node;
@@ -40,7 +40,7 @@ public class PosFrame extends JFrame {
      * @param problem
      * @param det
      */
-    public PosFrame(KataBrain brain, Node gameSource, KataAnalysisResult mistake, KataAnalysisResult prev, String name, Node problem, ProblemDetector det
+    public PosFrame(AnalysisEngine brain, Node gameSource, KataAnalysisResult mistake, KataAnalysisResult prev, String name, Node problem, ProblemDetector det
             , Properties props) {
         super("detected problem: " + prev.turnNumber + " -- " + name);
 
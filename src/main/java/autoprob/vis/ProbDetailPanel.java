@@ -1,6 +1,6 @@
 package autoprob.vis;
 
-import autoprob.KataBrain;
+import autoprob.AnalysisEngine;
 import autoprob.PathCreator;
 import autoprob.ProblemDetector;
 import autoprob.ShapePathCreator;
@@ -36,7 +36,7 @@ public class ProbDetailPanel extends JPanel {
     private JButton makePathsButton, stopButton;
     private PathCreator pc;
 
-    public ProbDetailPanel(Node gameSource, KataBrain brain, KataAnalysisResult prev, Node problem, Properties props, ProblemDetector det, ProblemPanel probPanel, String name) {
+    public ProbDetailPanel(Node gameSource, AnalysisEngine brain, KataAnalysisResult prev, Node problem, Properties props, ProblemDetector det, ProblemPanel probPanel, String name) {
         super();
 
         this.det = det;
@@ -143,7 +143,7 @@ public class ProbDetailPanel extends JPanel {
     }
 
     // create the solution paths
-    private void createPaths(Node problem, ProblemDetector det, BasicGoban probGoban, final KataBrain brain, PathCreator pc, PathCreator.GenOptions gopts) {
+    private void createPaths(Node problem, ProblemDetector det, BasicGoban probGoban, final AnalysisEngine brain, PathCreator pc, PathCreator.GenOptions gopts) {
         System.out.println("=========== make paths ===========");
         System.out.println("opts: " + gopts);
 
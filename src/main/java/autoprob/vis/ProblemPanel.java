@@ -69,8 +69,8 @@ public class ProblemPanel extends JPanel implements NodeChangeListener {
                     } else {
                         var kres = currentNode.kres;
                         idp.addEntry("pos", loc);
-                        int own = (int) (kres.ownership.get(x + y * 19) * 100);
-                        int ownStdDev = (int) (kres.ownershipStdev.get(x + y * 19) * 100);
+                        int own = (int) (kres.getOwnership()[x + y * 19] * 100);
+                        int ownStdDev = (int) (kres.getOwnershipStdev()[x + y * 19] * 100);
                         var sb = new StringBuilder();
                         sb.append(own);
                         // hint about color
@@ -1,6 +1,6 @@
 package autoprob.vis;
 
-import autoprob.KataBrain;
+import autoprob.AnalysisEngine;
 import autoprob.go.Intersection;
 import autoprob.go.Node;
 import autoprob.go.StoneConnect;
@@ -18,13 +18,13 @@ public class SourcePanel extends JPanel {
     private final BasicGoban goban;
     private final JLabel sourceHover;
 
-    public SourcePanel(Node gameSource, KataBrain brain, KataAnalysisResult prev, Node problem, Properties props) {
+    public SourcePanel(Node gameSource, AnalysisEngine brain, KataAnalysisResult prev, Node problem, Properties props) {
         super();
         setLayout(null);
         sourceHover = new JLabel("...");
         sourceHover.setVisible(false);
 
-        goban = new BasicGoban2D(gameSource, prev.ownership) {
+        goban = new BasicGoban2D(gameSource, prev.getOwnership()) {
             @Override
             public void clickSquare(Point p, MouseEvent e) {
 //				System.out.println("src: " + p);
@@ -46,7 +46,7 @@ public class SourcePanel extends JPanel {
                     // on board
                     StringBuilder sb = new StringBuilder();
                     sb.append("pos: ").append(Intersection.toGTPloc(x, y, 19));
-                    int own = (int) (prev.ownership.get(x + y * 19) * 100);
+                    int own = (int) (prev.getOwnership()[x + y * 19] * 100);
                     sb.append(", ownership: ").append(own);
                     // hint about color
                     if (own > 0) {
@@ -54,12 +54,12 @@ public class SourcePanel extends JPanel {
                     } else {
                         sb.append(" (W)");
                     }
-                    if (prev.ownershipStdev != null) {
-                        sb.append(", stdev: ").append((int) (prev.ownershipStdev.get(x + y * 19) * 100));
+                    if (prev.getOwnershipStdev() != null) {
+                        sb.append(", stdev: ").append((int) (prev.getOwnershipStdev()[x + y * 19] * 100));
                     }
                     if (problem.board.board[x][y].stone == 0) {
-                        if (prev != null && prev.policy != null)
-                            sb.append(", policy: ").append((int) (prev.policy.get(x + y * 19) * 1000));
+                        if (prev != null && prev.getPolicy() != null)
+                            sb.append(", policy: ").append((int) (prev.getPolicy()[x + y * 19] * 1000));
                     }
                     sourceHover.setVisible(true);
                     sourceHover.setText(sb.toString());
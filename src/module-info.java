@@ -2,6 +2,7 @@ module autoprob {
 	requires gson;
 	requires java.sql;
 	requires java.desktop;
+	requires java.management;
 	exports autoprob;
 	exports autoprob.katastruct;
     exports autoprob.test;